@@ -0,0 +1,91 @@
+package org.a0z.mpdlocal;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares sorting with {@link StringComparators#getNaturalComparator(Collator)} to the key-based
+ * {@link StringComparators#sortNatural(List, Collator)} and {@link ParallelSort#sortNatural(List, Collator)} on
+ * artist/album-like names, and checks that all of them give the same order.
+ * <p>
+ * Usage: <code>NaturalSortBenchmark [size...]</code>, 10000 and 50000 names by default. Lives in the bench source tree,
+ * run it against the compiled library, it is not part of it.
+ */
+public class NaturalSortBenchmark {
+
+    private static final String[] WORDS = {"the", "Beatles", "Pink", "Floyd", "Live", "at", "Vol.", "Disc", "Part",
+            "Greatest", "Hits", "\u00c9clat", "\u00d1u", "\u00e4rger", "Symphony", "No.", "Remastered", "feat.",
+            "Orchestra", "Mix"};
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int[] sizes = args.length == 0 ? new int[]{10000, 50000} : new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i]);
+        }
+        Collator collator = Collator.getInstance();
+        for (int size : sizes) {
+            List<String> names = names(size, new Random(size));
+            List<String> expected = new ArrayList<String>(names);
+            Collections.sort(expected, StringComparators.getNaturalComparator(collator));
+
+            long comparator = time(names, collator, 0, expected);
+            long keys = time(names, collator, 1, expected);
+            long parallel = time(names, collator, 2, expected);
+            System.out.println(size + " names: comparator " + comparator + " ms, keys " + keys
+                    + " ms, parallel keys " + parallel + " ms");
+        }
+    }
+
+    // Best of ROUNDS, in ms
+    private static long time(List<String> names, Collator collator, int method, List<String> expected) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            List<String> list = new ArrayList<String>(names);
+            long start = System.nanoTime();
+            switch (method) {
+                case 0:
+                    Collections.sort(list, StringComparators.getNaturalComparator(collator));
+                    break;
+                case 1:
+                    StringComparators.sortNatural(list, collator);
+                    break;
+                default:
+                    ParallelSort.sortNatural(list, collator);
+                    break;
+            }
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            if (!list.equals(expected)) {
+                throw new IllegalStateException("Order differs from the comparator's");
+            }
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best;
+    }
+
+    private static List<String> names(int size, Random random) {
+        List<String> names = new ArrayList<String>(size);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            name.setLength(0);
+            int words = 1 + random.nextInt(4);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    name.append(' ');
+                }
+                name.append(WORDS[random.nextInt(WORDS.length)]);
+                if (random.nextInt(3) == 0) {
+                    name.append(' ').append(random.nextInt(random.nextBoolean() ? 20 : 2000));
+                }
+            }
+            names.add(name.toString());
+        }
+        return names;
+    }
+}
@@ -24,14 +24,28 @@ public abstract class AbstractCommand {
         this.synchronous = synchronous;
     }
 
+    /**
+     * Encodes the command line, terminating newline included, into <code>out</code>.
+     *
+     * @param out buffer to encode into.
+     */
+    public void encode(CommandBuffer out) {
+        out.append(command);
+        for (String arg : args) {
+            if (arg == null)
+                continue;
+            out.appendArgument(arg);
+        }
+        out.append('\n');
+    }
+
     public String toString() {
-        StringBuffer outBuf = new StringBuffer();
+        StringBuilder outBuf = new StringBuilder();
         outBuf.append(command);
         for (String arg : args) {
-            if(arg == null)
+            if (arg == null)
                 continue;
-            arg = arg.replaceAll("\"", "\\\\\"");
-            outBuf.append(" \"" + arg + "\"");
+            CommandBuffer.appendArgument(outBuf, arg);
         }
         outBuf.append("\n");
         return outBuf.toString();
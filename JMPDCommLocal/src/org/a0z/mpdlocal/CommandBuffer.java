@@ -0,0 +1,157 @@
+package org.a0z.mpdlocal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Growable byte buffer commands are encoded into before they are written to the socket.
+ * <p>
+ * Strings are UTF-8 encoded by hand and arguments are quoted and escaped while they are copied, so encoding a command
+ * allocates nothing once the buffer has grown to the size of the largest command list sent. A buffer is not thread
+ * safe, {@link MPDConnection} keeps one per thread.
+ */
+public final class CommandBuffer {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Appends the UTF-8 encoding of <code>s</code>.
+     *
+     * @param s string to append.
+     * @return this buffer.
+     */
+    public CommandBuffer append(String s) {
+        int length = s.length();
+        ensureCapacity(size + length);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (size == bytes.length) {
+                    ensureCapacity(size + length - i);
+                }
+                bytes[size++] = (byte) c;
+            } else {
+                i = appendMultiByte(s, i, length);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends a space and <code>arg</code> between double quotes, with double quotes and backslashes escaped as MPD
+     * expects.
+     *
+     * @param arg argument to append.
+     * @return this buffer.
+     */
+    public CommandBuffer appendArgument(String arg) {
+        int length = arg.length();
+        ensureCapacity(size + length + 3);
+        bytes[size++] = ' ';
+        bytes[size++] = '"';
+        for (int i = 0; i < length; i++) {
+            char c = arg.charAt(i);
+            if (c < 0x80) {
+                if (size + 2 > bytes.length) {
+                    ensureCapacity(size + 2 + length - i);
+                }
+                if (c == '"' || c == '\\') {
+                    bytes[size++] = '\\';
+                }
+                bytes[size++] = (byte) c;
+            } else {
+                i = appendMultiByte(arg, i, length);
+            }
+        }
+        append('"');
+        return this;
+    }
+
+    /**
+     * Appends a single ASCII character.
+     *
+     * @param c character to append.
+     * @return this buffer.
+     */
+    public CommandBuffer append(char c) {
+        ensureCapacity(size + 1);
+        bytes[size++] = (byte) c;
+        return this;
+    }
+
+    /*
+     * Encodes the non ASCII character at index i, returns the index of the last char consumed.
+     */
+    private int appendMultiByte(String s, int i, int length) {
+        ensureCapacity(size + 4);
+        char c = s.charAt(i);
+        if (c < 0x800) {
+            bytes[size++] = (byte) (0xc0 | (c >> 6));
+            bytes[size++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint(c, s.charAt(i + 1));
+            bytes[size++] = (byte) (0xf0 | (codePoint >> 18));
+            bytes[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            bytes[size++] = (byte) (0x80 | (codePoint & 0x3f));
+            return i + 1;
+        } else if (Character.isSurrogate(c)) {
+            // Unpaired surrogate, replaced like the JDK encoder does
+            bytes[size++] = '?';
+        } else {
+            bytes[size++] = (byte) (0xe0 | (c >> 12));
+            bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            bytes[size++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            byte[] grown = new byte[Math.max(capacity, bytes.length * 2)];
+            System.arraycopy(bytes, 0, grown, 0, size);
+            bytes = grown;
+        }
+    }
+
+    /**
+     * Writes the content of the buffer to <code>out</code>.
+     *
+     * @param out stream to write to.
+     * @throws IOException if the write fails.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Empties the buffer, keeping its capacity.
+     */
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * Appends <code>arg</code> to <code>out</code> the way {@link #appendArgument(String)} encodes it.
+     *
+     * @param out builder to append to.
+     * @param arg argument to append.
+     */
+    static void appendArgument(StringBuilder out, String arg) {
+        out.append(" \"");
+        for (int i = 0; i < arg.length(); i++) {
+            char c = arg.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,213 @@
+package org.a0z.mpdlocal;
+
+import org.a0z.mpdlocal.exception.MPDServerException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Last-writer-wins stage for idempotent control commands such as <code>setvol</code> and <code>seek</code>.
+ * <p>
+ * The first command of a burst is sent right away so the UI stays responsive. Commands submitted within the window
+ * after a send only replace the pending one of the same kind, which is sent when the window ends. A burst of any length
+ * therefore costs at most one command per window, and the last value always reaches the server.
+ * <p>
+ * All commands are sent from a single thread, so a flush waits for a send in progress and commands always reach the
+ * server in the order they were submitted or flushed.
+ */
+public class CommandCoalescer {
+
+    public static final long DEFAULT_WINDOW_MS = 100;
+
+    private static final List<String> SEEK_COMMANDS = Arrays.asList(MPDCommand.MPD_CMD_SEEK,
+            MPDCommand.MPD_CMD_SEEK_ID, MPDCommand.MPD_CMD_SEEK_CURRENT);
+
+    private final MPD mpd;
+    private final long windowMs;
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("command-coalescer"));
+    private final Map<String, Slot> slots = new HashMap<String, Slot>();
+    // Commands pending or being sent, guarded by this; a flush with none has nothing to wait for
+    private int outstanding = 0;
+
+    public CommandCoalescer(MPD mpd) {
+        this(mpd, DEFAULT_WINDOW_MS);
+    }
+
+    public CommandCoalescer(MPD mpd, long windowMs) {
+        this.mpd = mpd;
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * Tells whether <code>command</code> can be coalesced: sending only the last of several such commands has the
+     * same effect as sending all of them.
+     *
+     * @param command command name.
+     * @param args    command arguments.
+     * @return true for volume and seek commands, except <code>seekcur</code> to a relative position ("+N" or "-N").
+     */
+    public static boolean isCoalescable(String command, String... args) {
+        if (MPDCommand.MPD_CMD_SEEK_CURRENT.equals(command)) {
+            // Relative seeks add up, dropping some of them changes the result
+            return args != null && args.length > 0 && args[0] != null
+                    && !args[0].startsWith("+") && !args[0].startsWith("-");
+        }
+        return MPDCommand.MPD_CMD_SET_VOLUME.equals(command) || SEEK_COMMANDS.contains(command);
+    }
+
+    private static String keyOf(String command) {
+        return SEEK_COMMANDS.contains(command) ? MPDCommand.MPD_CMD_SEEK : command;
+    }
+
+    /**
+     * Sends <code>command</code> now, or later in place of the commands of the same kind submitted before it.
+     *
+     * @param command a command for which {@link #isCoalescable(String, String...)} is true.
+     */
+    public void submit(final MPDCommand command) {
+        if (MPDCommand.MPD_CMD_SET_VOLUME.equals(command.getCommand()) && command.getArgs().length > 0) {
+            try {
+                mpd.volumeRequested(Integer.parseInt(command.getArgs()[0]));
+            } catch (NumberFormatException e) {
+                // Let the server reject it
+            }
+        }
+
+        String key = keyOf(command.getCommand());
+        boolean sendNow;
+        synchronized (this) {
+            Slot slot = slots.get(key);
+            if (slot == null) {
+                slot = new Slot();
+                slots.put(key, slot);
+            }
+            long now = System.nanoTime();
+            if (slot.pending == null && now - slot.lastSent >= TimeUnit.MILLISECONDS.toNanos(windowMs)) {
+                slot.lastSent = now;
+                outstanding++;
+                sendNow = true;
+            } else {
+                if (slot.pending == null) {
+                    outstanding++;
+                    schedule(key, slot.lastSent + TimeUnit.MILLISECONDS.toNanos(windowMs) - now);
+                }
+                slot.pending = command;
+                sendNow = false;
+            }
+        }
+        if (sendNow) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    send(command);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sends the pending commands and waits until they and any command being sent were sent, e.g. before a command
+     * that must come after them.
+     */
+    public void flush() {
+        synchronized (this) {
+            if (outstanding == 0) {
+                return;
+            }
+        }
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (MPDCommand command : takeAll()) {
+                        send(command);
+                    }
+                }
+            }).get();
+        } catch (RejectedExecutionException e) {
+            // Shut down, nothing is sent anymore
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Flushing coalesced commands failed: " + e.getCause());
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private synchronized List<MPDCommand> takeAll() {
+        List<MPDCommand> commands = new ArrayList<MPDCommand>();
+        for (Slot slot : slots.values()) {
+            if (slot.pending != null) {
+                commands.add(slot.pending);
+                slot.pending = null;
+                slot.lastSent = System.nanoTime();
+            }
+        }
+        return commands;
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down, nothing is sent anymore
+        }
+    }
+
+    private void schedule(final String key, long delayNanos) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                MPDCommand command;
+                synchronized (CommandCoalescer.this) {
+                    Slot slot = slots.get(key);
+                    command = slot.pending;
+                    slot.pending = null;
+                    if (command != null) {
+                        slot.lastSent = System.nanoTime();
+                    }
+                }
+                if (command != null) {
+                    send(command);
+                }
+            }
+        };
+        try {
+            executor.schedule(task, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down, nothing is sent anymore
+        }
+    }
+
+    private void send(MPDCommand command) {
+        try {
+            MPDConnection connection = mpd.getMpdConnection();
+            if (connection != null) {
+                connection.sendCommand(command);
+            }
+        } catch (MPDServerException e) {
+            System.err.println("Coalesced command " + command.getCommand() + " failed: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                outstanding--;
+            }
+        }
+    }
+
+    private static class Slot {
+        MPDCommand pending;
+        long lastSent = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+    }
+}
@@ -1,7 +1,9 @@
 package org.a0z.mpdlocal;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public abstract class Item implements Comparable<Item> {
 	public String mainText() {
@@ -40,30 +42,57 @@ public abstract class Item implements Comparable<Item> {
 
     /*
      * Merge item lists, for example received by albumartist and artist requests.
+     * Artists also present as album artist are dropped.
      *
-     * Sorted lists required!
+     * Sorted lists required! Lists that turn out not to be sorted are sorted first.
      */
     public static <T extends Item> List<T> merged(List<T> aa_items,
                                                   List<T> a_items) {
-        int j_start = aa_items.size()-1;
-        for (int i = a_items.size()-1; i >= 0; i--) {  // artists
-            String a_name = a_items.get(i).getName();
-            for (int j = j_start; j >= 0; j--) {  // album artists
-                if (aa_items.get(j).getName().equals(a_name)) {
-                    j_start = j;
-                    a_items.remove(i);
-                    break;
-                }
+        List<List<T>> sources = new ArrayList<List<T>>(2);
+        sources.add(sortedCopy(aa_items));
+        sources.add(sortedCopy(a_items));
+
+        // Items with the same name compare equal, so duplicates always end up in the same run
+        List<T> result = new ArrayList<T>(aa_items.size() + a_items.size());
+        List<T> aaRun = new ArrayList<T>();
+        List<T> aRun = new ArrayList<T>();
+        ParallelSort.MergeIterator<T> it = ParallelSort.merge(sources, null);
+        while (it.hasNext()) {
+            T item = it.next();
+            if (!aaRun.isEmpty() && aaRun.get(0).compareTo(item) != 0
+                    || !aRun.isEmpty() && aRun.get(0).compareTo(item) != 0) {
+                flushRun(result, aaRun, aRun);
             }
+            (it.lastSource() == 0 ? aaRun : aRun).add(item);
         }
-        List<T> result = a_items;
-        result.addAll(aa_items);
-        Collections.sort(result);
+        flushRun(result, aaRun, aRun);
         return result;
     }
 
+    private static <T extends Item> void flushRun(List<T> result, List<T> aaRun, List<T> aRun) {
+        Set<String> aaNames = new HashSet<String>();
+        for (T item : aaRun) {
+            aaNames.add(item.getName());
+        }
+        for (T item : aRun) {
+            if (!aaNames.contains(item.getName())) {
+                result.add(item);
+            }
+        }
+        result.addAll(aaRun);
+        aaRun.clear();
+        aRun.clear();
+    }
 
-
-
+    private static <T extends Item> List<T> sortedCopy(List<T> items) {
+        for (int i = 1; i < items.size(); i++) {
+            if (items.get(i - 1).compareTo(items.get(i)) > 0) {
+                List<T> sorted = new ArrayList<T>(items);
+                ParallelSort.sort(sorted, null);
+                return sorted;
+            }
+        }
+        return items;
+    }
 
 }
@@ -0,0 +1,501 @@
+package org.a0z.mpdlocal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * In-memory inverted index over the music database.
+ * <p>
+ * Every artist, album artist, album, title, filename and genre value is split into lower case word tokens. Each token
+ * keeps a posting list of the songs it occurs in, per field, and every token is also registered under its trigrams so
+ * that substring lookups do not need to scan the whole dictionary. This allows <code>find</code>/<code>search</code>
+ * requests and search-as-you-type queries to be answered without a round trip to MPD.
+ * <p>
+ * An index is immutable once built. When the database changes build a new one and swap it in.
+ *
+ * @see MPD#refreshLibraryIndex()
+ */
+public class LibraryIndex {
+
+    /**
+     * Search type matching any indexed field.
+     */
+    public static final String FIELD_ANY = "any";
+
+    private static final int FIELD_ARTIST = 0;
+    private static final int FIELD_ALBUM_ARTIST = 1;
+    private static final int FIELD_ALBUM = 2;
+    private static final int FIELD_TITLE = 3;
+    private static final int FIELD_FILENAME = 4;
+    private static final int FIELD_GENRE = 5;
+    private static final int FIELD_COUNT = 6;
+    private static final int ALL_FIELDS = (1 << FIELD_COUNT) - 1;
+
+    private static final int MATCH_EXACT = 0;
+    private static final int MATCH_PREFIX = 1;
+    private static final int MATCH_SUBSTRING = 2;
+
+    private static final int[] EMPTY = new int[0];
+
+    private final Music[] songs;
+
+    // Sorted, distinct, lower case tokens
+    private final String[] tokens;
+
+    // [token][field] -> ascending song indexes, null when the token does not occur in that field
+    private final int[][][] postings;
+
+    // trigram -> ascending token indexes
+    private final Map<String, int[]> trigrams;
+
+    private LibraryIndex(Music[] songs, String[] tokens, int[][][] postings, Map<String, int[]> trigrams) {
+        this.songs = songs;
+        this.tokens = tokens;
+        this.postings = postings;
+        this.trigrams = trigrams;
+    }
+
+    /**
+     * Builds an index over <code>songs</code>, usually the parsed response of a <code>listallinfo</code>. Entries
+     * without a file (directories, playlists) are skipped.
+     *
+     * @param songs songs to index.
+     * @return a new index.
+     */
+    public static LibraryIndex build(List<Music> songs) {
+        List<Music> indexed = new ArrayList<Music>(songs.size());
+        for (Music music : songs) {
+            if (music != null && music.getFullpath() != null) {
+                indexed.add(music);
+            }
+        }
+
+        Map<String, IntList[]> dictionary = new HashMap<String, IntList[]>();
+        List<String> words = new ArrayList<String>();
+        for (int song = 0; song < indexed.size(); song++) {
+            Music music = indexed.get(song);
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                words.clear();
+                tokenize(fieldValue(music, field), words);
+                for (String word : words) {
+                    IntList[] fields = dictionary.get(word);
+                    if (fields == null) {
+                        fields = new IntList[FIELD_COUNT];
+                        dictionary.put(word, fields);
+                    }
+                    if (fields[field] == null) {
+                        fields[field] = new IntList();
+                    }
+                    fields[field].addUnique(song);
+                }
+            }
+        }
+
+        String[] tokens = dictionary.keySet().toArray(new String[dictionary.size()]);
+        Arrays.sort(tokens);
+
+        int[][][] postings = new int[tokens.length][][];
+        Map<String, IntList> grams = new HashMap<String, IntList>();
+        for (int t = 0; t < tokens.length; t++) {
+            IntList[] fields = dictionary.get(tokens[t]);
+            postings[t] = new int[FIELD_COUNT][];
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                postings[t][field] = fields[field] == null ? null : fields[field].toArray();
+            }
+            String token = tokens[t];
+            for (int i = 0; i + 3 <= token.length(); i++) {
+                String gram = token.substring(i, i + 3);
+                IntList list = grams.get(gram);
+                if (list == null) {
+                    list = new IntList();
+                    grams.put(gram, list);
+                }
+                list.addUnique(t);
+            }
+        }
+
+        Map<String, int[]> trigrams = new HashMap<String, int[]>(grams.size() * 2);
+        for (Map.Entry<String, IntList> entry : grams.entrySet()) {
+            trigrams.put(entry.getKey(), entry.getValue().toArray());
+        }
+
+        return new LibraryIndex(indexed.toArray(new Music[indexed.size()]), tokens, postings, trigrams);
+    }
+
+    /**
+     * Retrieves the number of indexed songs.
+     *
+     * @return number of indexed songs.
+     */
+    public int size() {
+        return songs.length;
+    }
+
+    /**
+     * Tells whether <code>type</code> is a tag this index can answer for.
+     *
+     * @param type MPD search type, e.g. <code>MPDCommand.MPD_SEARCH_ARTIST</code> or {@link #FIELD_ANY}.
+     * @return true if the type is indexed.
+     */
+    public static boolean supports(String type) {
+        return fieldMask(type) != 0;
+    }
+
+    /**
+     * Tells whether all type/value pairs of a <code>find</code>/<code>search</code> argument list can be answered by
+     * this index.
+     *
+     * @param args alternating types and values.
+     * @return true if every type is indexed.
+     */
+    public static boolean supports(String[] args) {
+        if (args == null || args.length == 0 || args.length % 2 != 0) {
+            return false;
+        }
+        for (int i = 0; i < args.length; i += 2) {
+            if (!supports(args[i]) || args[i + 1] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether a <code>find</code>/<code>search</code> gives the same songs locally as on the server. That excludes
+     * {@link #FIELD_ANY}: MPD looks into every tag for it, the index only into the fields above.
+     *
+     * @param args alternating types and values.
+     * @return true if every type is indexed and none is {@link #FIELD_ANY}.
+     */
+    public static boolean answersLikeServer(String[] args) {
+        if (!supports(args)) {
+            return false;
+        }
+        for (int i = 0; i < args.length; i += 2) {
+            if (FIELD_ANY.equalsIgnoreCase(args[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Local equivalent of MPD's <code>find</code>: every value must exactly match its tag.
+     *
+     * @param args alternating types and values.
+     * @return matching songs in database order.
+     */
+    public List<Music> find(String[] args) {
+        return match(args, true);
+    }
+
+    /**
+     * Local equivalent of MPD's <code>search</code>: every value must be a case-insensitive substring of its tag.
+     *
+     * @param args alternating types and values.
+     * @return matching songs in database order.
+     */
+    public List<Music> search(String[] args) {
+        return match(args, false);
+    }
+
+    /**
+     * Word based query meant for search-as-you-type. <code>text</code> is split into words and every word must match a
+     * word of the selected tag, either as a prefix or anywhere inside it.
+     *
+     * @param type   tag to look into, {@link #FIELD_ANY} for all tags.
+     * @param text   text typed so far.
+     * @param prefix true to match the words as prefixes, false to match them as substrings.
+     * @param limit  maximum number of songs to return.
+     * @return at most <code>limit</code> matching songs in database order.
+     */
+    public List<Music> query(String type, String text, boolean prefix, int limit) {
+        int mask = fieldMask(type);
+        List<String> words = new ArrayList<String>();
+        tokenize(text, words);
+        List<Music> result = new ArrayList<Music>();
+        if (mask == 0 || words.isEmpty() || limit <= 0) {
+            return result;
+        }
+
+        BitSet hits = null;
+        for (String word : words) {
+            BitSet wordHits = songsFor(word, mask, prefix ? MATCH_PREFIX : MATCH_SUBSTRING);
+            if (hits == null) {
+                hits = wordHits;
+            } else {
+                hits.and(wordHits);
+            }
+            if (hits.isEmpty()) {
+                return result;
+            }
+        }
+
+        for (int song = hits.nextSetBit(0); song >= 0 && result.size() < limit; song = hits.nextSetBit(song + 1)) {
+            result.add(songs[song]);
+        }
+        return result;
+    }
+
+    /**
+     * Tells whether a single song satisfies {@link #query(String, String, boolean, int)}. Used to narrow down a
+     * previous result set when the query is refined.
+     *
+     * @param music  song to test.
+     * @param type   tag to look into, {@link #FIELD_ANY} for all tags.
+     * @param text   query text.
+     * @param prefix true to match the words as prefixes, false to match them as substrings.
+     * @return true if the song matches.
+     */
+    public boolean matches(Music music, String type, String text, boolean prefix) {
+        int mask = fieldMask(type);
+        List<String> words = new ArrayList<String>();
+        tokenize(text, words);
+        if (mask == 0 || words.isEmpty()) {
+            return false;
+        }
+
+        List<String> songWords = new ArrayList<String>();
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            if ((mask & (1 << field)) != 0) {
+                tokenize(fieldValue(music, field), songWords);
+            }
+        }
+        for (String word : words) {
+            boolean found = false;
+            for (String songWord : songWords) {
+                if (prefix ? songWord.startsWith(word) : songWord.contains(word)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<Music> match(String[] args, boolean exact) {
+        List<Music> result = new ArrayList<Music>();
+        if (!supports(args)) {
+            return result;
+        }
+
+        // Narrow down candidates with the index, then check the full values
+        BitSet hits = null;
+        List<String> words = new ArrayList<String>();
+        for (int i = 0; i < args.length; i += 2) {
+            int mask = fieldMask(args[i]);
+            words.clear();
+            tokenize(args[i + 1], words);
+            for (String word : words) {
+                BitSet wordHits = songsFor(word, mask, exact ? MATCH_EXACT : MATCH_SUBSTRING);
+                if (hits == null) {
+                    hits = wordHits;
+                } else {
+                    hits.and(wordHits);
+                }
+            }
+        }
+        if (hits == null) {
+            // Nothing but punctuation to look for, check every song
+            hits = new BitSet(songs.length);
+            hits.set(0, songs.length);
+        }
+
+        for (int song = hits.nextSetBit(0); song >= 0; song = hits.nextSetBit(song + 1)) {
+            if (verify(songs[song], args, exact)) {
+                result.add(songs[song]);
+            }
+        }
+        return result;
+    }
+
+    private static boolean verify(Music music, String[] args, boolean exact) {
+        for (int i = 0; i < args.length; i += 2) {
+            int mask = fieldMask(args[i]);
+            String expected = exact ? args[i + 1] : args[i + 1].toLowerCase(Locale.ROOT);
+            boolean found = false;
+            for (int field = 0; field < FIELD_COUNT && !found; field++) {
+                if ((mask & (1 << field)) == 0) {
+                    continue;
+                }
+                String value = fieldValue(music, field);
+                if (value != null) {
+                    found = exact ? value.equals(expected) : value.toLowerCase(Locale.ROOT).contains(expected);
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private BitSet songsFor(String word, int mask, int matchType) {
+        BitSet result = new BitSet(songs.length);
+        switch (matchType) {
+            case MATCH_EXACT:
+                int index = Arrays.binarySearch(tokens, word);
+                if (index >= 0) {
+                    addPostings(result, index, mask);
+                }
+                break;
+            case MATCH_PREFIX:
+                for (int t = lowerBound(word); t < tokens.length && tokens[t].startsWith(word); t++) {
+                    addPostings(result, t, mask);
+                }
+                break;
+            default:
+                if (word.length() < 3) {
+                    for (int t = 0; t < tokens.length; t++) {
+                        if (tokens[t].contains(word)) {
+                            addPostings(result, t, mask);
+                        }
+                    }
+                } else {
+                    for (int t : tokensContaining(word)) {
+                        addPostings(result, t, mask);
+                    }
+                }
+                break;
+        }
+        return result;
+    }
+
+    // Uses the rarest trigram of the word as candidate list and checks each candidate token
+    private int[] tokensContaining(String word) {
+        int[] candidates = null;
+        for (int i = 0; i + 3 <= word.length(); i++) {
+            int[] list = trigrams.get(word.substring(i, i + 3));
+            if (list == null) {
+                return EMPTY;
+            }
+            if (candidates == null || list.length < candidates.length) {
+                candidates = list;
+            }
+        }
+        IntList result = new IntList();
+        for (int t : candidates) {
+            if (tokens[t].contains(word)) {
+                result.addUnique(t);
+            }
+        }
+        return result.toArray();
+    }
+
+    private void addPostings(BitSet result, int token, int mask) {
+        int[][] fields = postings[token];
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            if ((mask & (1 << field)) != 0 && fields[field] != null) {
+                for (int song : fields[field]) {
+                    result.set(song);
+                }
+            }
+        }
+    }
+
+    private int lowerBound(String word) {
+        int low = 0;
+        int high = tokens.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (tokens[mid].compareTo(word) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int fieldMask(String type) {
+        if (type == null) {
+            return 0;
+        }
+        String t = type.toLowerCase(Locale.ROOT);
+        if (FIELD_ANY.equals(t)) {
+            return ALL_FIELDS;
+        } else if (MPDCommand.MPD_TAG_ARTIST.equals(t)) {
+            return 1 << FIELD_ARTIST;
+        } else if (MPDCommand.MPD_TAG_ALBUM_ARTIST.equals(t)) {
+            return 1 << FIELD_ALBUM_ARTIST;
+        } else if (MPDCommand.MPD_TAG_ALBUM.equals(t)) {
+            return 1 << FIELD_ALBUM;
+        } else if (MPDCommand.MPD_SEARCH_TITLE.equals(t)) {
+            return 1 << FIELD_TITLE;
+        } else if (MPDCommand.MPD_SEARCH_FILENAME.equals(t) || "file".equals(t)) {
+            return 1 << FIELD_FILENAME;
+        } else if (MPDCommand.MPD_TAG_GENRE.equals(t)) {
+            return 1 << FIELD_GENRE;
+        }
+        return 0;
+    }
+
+    private static String fieldValue(Music music, int field) {
+        switch (field) {
+            case FIELD_ARTIST:
+                return music.getArtist();
+            case FIELD_ALBUM_ARTIST:
+                return music.getAlbumArtist();
+            case FIELD_ALBUM:
+                return music.getAlbum();
+            case FIELD_TITLE:
+                // getTitle() falls back to the filename, MPD only looks at the tag
+                return music.haveTitle() ? music.getTitle() : null;
+            case FIELD_FILENAME:
+                return music.getFullpath();
+            case FIELD_GENRE:
+                return music.getGenre();
+            default:
+                return null;
+        }
+    }
+
+    /*
+     * Splits text into lower case runs of letters and digits.
+     */
+    static void tokenize(String text, List<String> out) {
+        if (text == null) {
+            return;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                out.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+    }
+
+    /*
+     * Growable list of ascending ints, cheaper than a List<Integer> for posting lists.
+     */
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size = 0;
+
+        void addUnique(int value) {
+            if (size > 0 && values[size - 1] == value) {
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package org.a0z.mpdlocal;
 
 
+import org.a0z.mpdlocal.event.BulkProgressListener;
+import org.a0z.mpdlocal.event.StatusChangeListener;
 import org.a0z.mpdlocal.exception.MPDClientException;
 import org.a0z.mpdlocal.exception.MPDConnectionException;
 import org.a0z.mpdlocal.exception.MPDServerException;
@@ -8,6 +10,7 @@ import org.a0z.mpdlocal.exception.MPDServerException;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.text.Collator;
 import java.util.*;
 
 /**
@@ -17,20 +20,33 @@ import java.util.*;
  */
 public class MPD {
 
+    // Idle subsystem the library index depends on
+    private static final String IDLE_DATABASE = "database";
+
     protected MPDConnection mpdConnection;
     protected MPDConnection mpdIdleConnection;
     protected MPDConnection mpdStatusConnection;
 
 
-    protected MPDStatus mpdStatus;
+    protected final MPDStatusCache statusCache = new MPDStatusCache(this);
+    private CommandCoalescer commandCoalescer;
+
+    // Last volume asked for and the status version it was asked at, newer than the status until that is read again
+    private volatile int requestedVolume = -1;
+    private volatile long requestedVolumeVersion = -1;
     protected MPDPlaylist playlist;
     protected Directory rootDirectory;
+    protected volatile LibraryIndex libraryIndex;
+    // Bumped by invalidateLibraryIndex(), guarded by libraryIndexLock
+    private long libraryIndexGeneration = 0;
+    private final Object libraryIndexLock = new Object();
 
     static protected boolean useAlbumArtist = false;
     static protected boolean sortByTrackNumber = true;
     static protected boolean sortAlbumsByYear = false;
     static protected boolean showArtistAlbumCount = false;
     static protected boolean showAlbumTrackCount = true;
+    static protected boolean sortNatural = false;
 
     static public boolean useAlbumArtist() {
         return useAlbumArtist;
@@ -52,6 +68,10 @@ public class MPD {
         return showAlbumTrackCount;
     }
 
+    static public boolean sortNatural() {
+        return sortNatural;
+    }
+
     static public void setUseAlbumArtist(boolean v) {
         useAlbumArtist = v;
     }
@@ -72,12 +92,44 @@ public class MPD {
         showAlbumTrackCount = v;
     }
 
+    /**
+     * Sort artist, album and genre listings in natural order (embedded numbers by value, locale aware text) instead
+     * of plain case (in)sensitive order. Off by default since it changes the order clients get; the sort itself is
+     * several times faster than the natural comparator.
+     */
+    static public void setSortNatural(boolean v) {
+        sortNatural = v;
+    }
+
+    /*
+     * Sorts names returned by a listing according to the sort settings.
+     */
+    private static void sortNames(List<String> names, boolean sortInsensitive) {
+        if (sortNatural) {
+            ParallelSort.sortNatural(names, Collator.getInstance());
+        } else if (sortInsensitive) {
+            ParallelSort.sortIgnoreCase(names);
+        } else {
+            ParallelSort.sort(names, null);
+        }
+    }
+
+    /*
+     * Sorts items according to the sort settings.
+     */
+    private static <T extends Item> void sortItems(List<T> items) {
+        if (sortNatural) {
+            StringComparators.sortNaturalItems(items);
+        } else {
+            ParallelSort.sort(items, null);
+        }
+    }
+
     /**
      * Constructs a new MPD server controller without connection.
      */
     public MPD() {
         this.playlist = new MPDPlaylist(this);
-        this.mpdStatus = new MPDStatus();
         this.rootDirectory = Directory.makeRootDirectory(this);
     }
 
@@ -119,6 +171,34 @@ public class MPD {
         return this.mpdIdleConnection;
     }
 
+    MPDConnection getMpdStatusConnection() {
+        return this.mpdStatusConnection;
+    }
+
+    /**
+     * Registers a listener for typed status changes. Changes are detected by comparing consecutive status reads, see
+     * {@link StatusChangeDispatcher}; they are only noticed as fast as the status is read, which with
+     * {@link MPDRawChangeMonitor} running is right after each idle event.
+     *
+     * @param listener listener to add.
+     */
+    public void addStatusChangeListener(StatusChangeListener listener) {
+        statusCache.getDispatcher().addListener(listener);
+    }
+
+    public void removeStatusChangeListener(StatusChangeListener listener) {
+        statusCache.getDispatcher().removeListener(listener);
+    }
+
+    /**
+     * Retrieves the status cache fed by idle events.
+     *
+     * @return the status cache.
+     */
+    public MPDStatusCache getStatusCache() {
+        return statusCache;
+    }
+
     /**
      * Wait for server changes using "idle" command on the dedicated connection.
      *
@@ -126,18 +206,58 @@ public class MPD {
      * @throws MPDServerException if an error occur while contacting server
      */
     public List<String> waitForChanges() throws MPDServerException {
+        return waitForChanges(Collections.<String>emptySet());
+    }
+
+    /**
+     * Wait for changes of some subsystems using "idle" command on the dedicated connection. The subsystems the status
+     * cache and the library index depend on are always watched.
+     *
+     * @param subsystems subsystems to watch, e.g. "player" or "database", all of them if empty.
+     * @return Data readed from the server.
+     * @throws MPDServerException if an error occur while contacting server
+     */
+    public List<String> waitForChanges(Collection<String> subsystems) throws MPDServerException {
+        String[] args = new String[0];
+        if (!subsystems.isEmpty()) {
+            Set<String> watched = new LinkedHashSet<String>(MPDStatusCache.STATUS_SUBSYSTEMS);
+            watched.add(IDLE_DATABASE);
+            watched.addAll(subsystems);
+            args = watched.toArray(new String[watched.size()]);
+        }
 
         while (mpdIdleConnection != null && mpdIdleConnection.isConnected()) {
+            statusCache.idleStarted();
             List<String> data = mpdIdleConnection
-                    .sendAsyncCommand(MPDCommand.MPD_CMD_IDLE);
+                    .sendAsyncCommand(MPDCommand.MPD_CMD_IDLE, args);
             if (data.isEmpty()) {
                 continue;
             }
+            changed(data);
             return data;
         }
         throw new MPDConnectionException("IDLE connection lost");
     }
 
+    /**
+     * Takes changes of the server watched on another connection, as if they were returned by
+     * {@link #waitForChanges()}: the status is read again when next needed and the library index dropped if the
+     * database changed.
+     *
+     * @param changes idle response lines, e.g. "changed: player".
+     */
+    public void changesObserved(List<String> changes) {
+        statusCache.idleStarted();
+        changed(changes);
+    }
+
+    private void changed(List<String> changes) {
+        statusCache.changed(changes);
+        if (changes.contains("changed: database")) {
+            invalidateLibraryIndex();
+        }
+    }
+
     public boolean isMpdConnectionNull() {
         return (this.mpdConnection == null);
     }
@@ -152,13 +272,34 @@ public class MPD {
         if (!isConnected())
             throw new MPDServerException("MPD Connection is not established");
 
-        // calculate final volume (clip value with [0, 100])
-        int vol = getVolume() + modifier;
+        // calculate final volume (clip value with [0, 100]), from the last requested one so that steps sent
+        // before the status reflects them are not lost
+        int requested = requestedVolume;
+        int base = requested >= 0 && statusCache.peek().getVersion() == requestedVolumeVersion ? requested : getVolume();
+        int vol = base + modifier;
         vol = Math.max(MPDCommand.MIN_VOLUME, Math.min(MPDCommand.MAX_VOLUME, vol));
 
+        volumeRequested(vol);
         mpdConnection.sendCommand(MPDCommand.MPD_CMD_SET_VOLUME, Integer.toString(vol));
     }
 
+    void volumeRequested(int volume) {
+        requestedVolumeVersion = statusCache.peek().getVersion();
+        requestedVolume = volume;
+    }
+
+    /**
+     * Retrieves the coalescing stage for volume and seek commands, see {@link CommandCoalescer}.
+     *
+     * @return the command coalescer of this server controller.
+     */
+    public synchronized CommandCoalescer getCommandCoalescer() {
+        if (commandCoalescer == null) {
+            commandCoalescer = new CommandCoalescer(this);
+        }
+        return commandCoalescer;
+    }
+
     /**
      * Clears error message.
      *
@@ -180,8 +321,24 @@ public class MPD {
      * @throws UnknownHostException
      */
     public final void connect(String server, int port, String password) throws MPDServerException, UnknownHostException {
+        connect(server, port, password, true);
+    }
+
+    /**
+     * Connects to a MPD server, optionally without the connection used to wait for changes. Changes watched by other
+     * means, e.g. a monitor shared with other clients of the server, are then passed to
+     * {@link #changesObserved(List)}.
+     *
+     * @param server server address or host name
+     * @param port   server port
+     * @param idle   whether to open the connection used by {@link #waitForChanges()}
+     * @throws MPDServerException   if an error occur while contacting server
+     * @throws UnknownHostException
+     */
+    public final void connect(String server, int port, String password, boolean idle)
+            throws MPDServerException, UnknownHostException {
         InetAddress adress = InetAddress.getByName(server);
-        connect(adress, port, password);
+        connect(adress, port, password, idle);
     }
 
     /**
@@ -191,12 +348,18 @@ public class MPD {
      * @param port   server port
      */
     public final void connect(InetAddress server, int port, String password) throws MPDServerException {
+        connect(server, port, password, true);
+    }
+
+    private void connect(InetAddress server, int port, String password, boolean idle) throws MPDServerException {
         // I changed this from MPDConnectionMultiSocket as the ThreadLocals were not being cleaned on disconnect
         // leading to multiple orphaned sockets. Eventually MPD would stop accepting connections becuase of all these
         // orphaned sockets. So far it seems to work fine with the monosocket connections...
         this.mpdConnection = new MPDConnectionMonoSocket(server, port, password, 5000);
-        this.mpdIdleConnection = new MPDConnectionMonoSocket(server, port, password, 0);
+        this.mpdIdleConnection = idle ? new MPDConnectionMonoSocket(server, port, password, 0) : null;
         this.mpdStatusConnection = new MPDConnectionMonoSocket(server, port, password, 10000);
+        statusCache.getDispatcher().start();
+        statusCache.getDispatcher().connectionStateChanged(true, false);
     }
 
     /**
@@ -258,6 +421,8 @@ public class MPD {
             }
         }
 
+        statusCache.getDispatcher().connectionStateChanged(false, false);
+        statusCache.getDispatcher().shutdown();
         if (ex != null) {
             throw ex;
         }
@@ -286,6 +451,12 @@ public class MPD {
         if (!isConnected())
             throw new MPDServerException("MPD Connection is not established");
 
+        List<Music> local = searchLibraryIndex(searchCommand, new String[]{type, strToFind});
+        if (local != null) {
+            Collections.sort(local);
+            return local;
+        }
+
         List<String> response = mpdConnection.sendCommand(searchCommand, type, strToFind);
         return Music.getMusicFromList(response, true);
     }
@@ -294,9 +465,79 @@ public class MPD {
         if (!isConnected())
             throw new MPDServerException("MPD Connection is not established");
 
+        List<Music> local = searchLibraryIndex(searchCommand, args);
+        if (local != null) {
+            if (sort) {
+                Collections.sort(local);
+            }
+            return local;
+        }
+
         return Music.getMusicFromList(mpdConnection.sendCommand(searchCommand, args), sort);
     }
 
+    /*
+     * Answers a find/search from the local library index, returns null when it has to go to the server.
+     */
+    private List<Music> searchLibraryIndex(String searchCommand, String[] args) {
+        LibraryIndex index = libraryIndex;
+        if (index == null || !LibraryIndex.answersLikeServer(args)) {
+            return null;
+        }
+        if (MPDCommand.MPD_CMD_FIND.equals(searchCommand)) {
+            return index.find(args);
+        } else if (MPDCommand.MPD_CMD_SEARCH.equals(searchCommand)) {
+            return index.search(args);
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the local library index.
+     *
+     * @return the library index, or null if it has not been built or the database changed since.
+     * @see #refreshLibraryIndex()
+     */
+    public LibraryIndex getLibraryIndex() {
+        return libraryIndex;
+    }
+
+    /**
+     * Builds the local library index from a <code>listallinfo</code> of the whole database. Once built,
+     * <code>find</code> and <code>search</code> on indexed tags are answered locally until the next database change.
+     * An index whose listing was read before a database change is returned but not installed.
+     *
+     * @return the new library index.
+     * @throws MPDServerException if an error occur while contacting server.
+     */
+    public LibraryIndex refreshLibraryIndex() throws MPDServerException {
+        if (!isConnected())
+            throw new MPDServerException("MPD Connection is not established");
+
+        long generation;
+        synchronized (libraryIndexLock) {
+            generation = libraryIndexGeneration;
+        }
+        List<String> response = mpdConnection.sendCommand(MPDCommand.MPD_CMD_LISTALLINFO);
+        LibraryIndex index = LibraryIndex.build(Music.getMusicFromList(response, false));
+        synchronized (libraryIndexLock) {
+            if (generation == libraryIndexGeneration) {
+                libraryIndex = index;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Drops the local library index, <code>find</code> and <code>search</code> go to the server again.
+     */
+    public void invalidateLibraryIndex() {
+        synchronized (libraryIndexLock) {
+            libraryIndexGeneration++;
+            libraryIndex = null;
+        }
+    }
+
     /**
      * Retrieves a database directory listing of the base of the database directory path.
      *
@@ -362,7 +603,7 @@ public class MPD {
         if (!isConnected())
             throw new MPDServerException("MPD Connection is not established");
 
-        int[] version = mpdIdleConnection.getMpdVersion();
+        int[] version = (mpdIdleConnection != null ? mpdIdleConnection : mpdConnection).getMpdVersion();
 
         StringBuffer sb = new StringBuffer();
         for (int i = 0; i < version.length; i++) {
@@ -404,20 +645,27 @@ public class MPD {
     }
 
     /**
-     * Retrieves status of the connected server.
+     * Retrieves status of the connected server. While changes are watched with {@link #waitForChanges()} this is a
+     * memory read unless an idle event made the last status stale, see {@link MPDStatusCache}.
      *
+     * @param forceRefresh read the status from the server in any case.
      * @return status of the connected server.
      * @throws MPDServerException if an error occur while contacting server.
      */
     public MPDStatus getStatus(boolean forceRefresh) throws MPDServerException {
-        if (forceRefresh || mpdStatus == null || mpdStatus.getState() == null) {
-            if (!isConnected()) {
-                throw new MPDConnectionException("MPD Connection is not established");
-            }
-            List<String> response = mpdStatusConnection.sendCommand(MPDCommand.MPD_CMD_STATUS);
-            mpdStatus.updateStatus(response);
-        }
-        return mpdStatus;
+        return statusCache.get(forceRefresh);
+    }
+
+    /*
+     * Publishes a status response fetched along with other commands, request is taken with statusRequested() before
+     * sending them.
+     */
+    MPDStatusCache.Request statusRequested() {
+        return statusCache.request();
+    }
+
+    MPDStatus statusReceived(List<String> response, MPDStatusCache.Request request) {
+        return statusCache.publish(response, request);
     }
 
     /**
@@ -436,7 +684,8 @@ public class MPD {
      * @return true when connected and false when not connected
      */
     public boolean isConnected() {
-        return mpdIdleConnection != null && mpdStatusConnection != null && mpdConnection != null && mpdIdleConnection.isConnected();
+        MPDConnection watched = mpdIdleConnection != null ? mpdIdleConnection : mpdConnection;
+        return mpdStatusConnection != null && mpdConnection != null && watched.isConnected();
     }
 
 
@@ -513,7 +762,7 @@ public class MPD {
             }
         }
 
-        Collections.sort(result);
+        sortNames(result, false);
 
         // add a single blank entry to host all songs without an album set
         if ((includeUnknownAlbum == true) && (foundSongWithoutAlbum == true)) {
@@ -664,10 +913,7 @@ public class MPD {
             if (name.length() > 0)
                 result.add(name);
         }
-        if (sortInsensitive)
-            Collections.sort(result, String.CASE_INSENSITIVE_ORDER);
-        else
-            Collections.sort(result);
+        sortNames(result, sortInsensitive);
 
         return result;
     }
@@ -738,10 +984,7 @@ public class MPD {
             if (name.length() > 0)
                 result.add(name);
         }
-        if (sortInsensitive)
-            Collections.sort(result, String.CASE_INSENSITIVE_ORDER);
-        else
-            Collections.sort(result);
+        sortNames(result, sortInsensitive);
 
         return result;
     }
@@ -775,10 +1018,7 @@ public class MPD {
             if (name.length() > 0)
                 result.add(name);
         }
-        if (sortInsensitive)
-            Collections.sort(result, String.CASE_INSENSITIVE_ORDER);
-        else
-            Collections.sort(result);
+        sortNames(result, sortInsensitive);
 
         return result;
     }
@@ -805,10 +1045,7 @@ public class MPD {
             if (name.length() > 0)
                 result.add(name);
         }
-        if (sortInsensitive)
-            Collections.sort(result, String.CASE_INSENSITIVE_ORDER);
-        else
-            Collections.sort(result);
+        sortNames(result, sortInsensitive);
         return result;
     }
 
@@ -835,10 +1072,7 @@ public class MPD {
             if (name.length() > 0)
                 result.add(name);
         }
-        if (sortInsensitive)
-            Collections.sort(result, String.CASE_INSENSITIVE_ORDER);
-        else
-            Collections.sort(result);
+        sortNames(result, sortInsensitive);
         return result;
     }
 
@@ -1021,6 +1255,7 @@ public class MPD {
             throw new MPDServerException("MPD Connection is not established");
 
         int vol = Math.max(MPDCommand.MIN_VOLUME, Math.min(MPDCommand.MAX_VOLUME, volume));
+        volumeRequested(vol);
         mpdConnection.sendCommand(MPDCommand.MPD_CMD_SET_VOLUME, Integer.toString(vol));
     }
 
@@ -1177,7 +1412,10 @@ public class MPD {
             return aasongs;
     }
 
-    public List<Music> getSongs(Artist artist, Album album, boolean useAlbumArtist) throws MPDServerException {
+    /*
+     * Type and value pairs of a find request matching the songs of artist and album, null if there is nothing to match.
+     */
+    private static String[] songFilter(Artist artist, Album album, boolean useAlbumArtist) {
         boolean haveArtist = (null != artist);
         boolean haveAlbum = (null != album) && !(album instanceof UnknownAlbum);
         String[] search = null;
@@ -1194,7 +1432,59 @@ public class MPD {
                 search[pos++] = album.getName();
             }
         }
-        List<Music> songs = find(search);
+        return search;
+    }
+
+    /*
+     * Filter of the songs of artist and album for server side adds, preferring the album artist tag as getSongs does.
+     * Returns null when the server can't do the matching itself.
+     */
+    private String[] serverSongFilter(Artist artist, Album album) throws MPDServerException {
+        if (album instanceof UnknownAlbum || (artist == null && album == null)) {
+            return null;
+        }
+        String[] filter = songFilter(artist, album, true);
+        if (artist != null && countSongs(filter) == 0) {
+            filter = songFilter(artist, album, false);
+        }
+        return filter;
+    }
+
+    private long countSongs(String[] filter) throws MPDServerException {
+        List<String> list = mpdConnection.sendCommand(MPDCommand.MPD_CMD_COUNT, filter);
+        for (String line : list) {
+            if (line.startsWith("songs: ")) {
+                return Long.parseLong(line.substring("songs: ".length()));
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * Converts find arguments to an MPD 0.21 filter expression, exact matches on all pairs.
+     */
+    private static String filterExpression(String[] filter) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i + 1 < filter.length; i += 2) {
+            if (i > 0) {
+                sb.append(" AND ");
+            }
+            sb.append('(').append(filter[i]).append(" == \"");
+            String value = filter[i + 1];
+            for (int c = 0; c < value.length(); c++) {
+                char ch = value.charAt(c);
+                if (ch == '"' || ch == '\\' || ch == '\'') {
+                    sb.append('\\');
+                }
+                sb.append(ch);
+            }
+            sb.append("\")");
+        }
+        return sb.append(')').toString();
+    }
+
+    public List<Music> getSongs(Artist artist, Album album, boolean useAlbumArtist) throws MPDServerException {
+        List<Music> songs = find(songFilter(artist, album, useAlbumArtist));
         if (album instanceof UnknownAlbum) {
             // filter out any songs with which have the album tag set
             Iterator<Music> iter = songs.iterator();
@@ -1258,7 +1548,7 @@ public class MPD {
             }
         }
         if (null != albums) {
-            Collections.sort(albums);
+            sortAlbums(albums);
         }
         return albums;
     }
@@ -1290,7 +1580,24 @@ public class MPD {
             i++;
         }
         albums.addAll(splitalbums);
-        Collections.sort(albums);
+        sortAlbums(albums);
+    }
+
+    private static void sortAlbums(List<Album> albums) {
+        if (sortNatural) {
+            StringComparators.sortNaturalItems(albums);
+            if (sortAlbumsByYear()) {
+                // stable, keeps the natural order within a year
+                Collections.sort(albums, new Comparator<Album>() {
+                    @Override
+                    public int compare(Album a, Album b) {
+                        return a.getYear() < b.getYear() ? -1 : (a.getYear() == b.getYear() ? 0 : 1);
+                    }
+                });
+            }
+        } else {
+            Collections.sort(albums);
+        }
     }
 
     public List<Genre> getGenres() throws MPDServerException {
@@ -1304,7 +1611,7 @@ public class MPD {
             }
         }
         if (null != genres) {
-            Collections.sort(genres);
+            sortItems(genres);
         }
         return genres;
     }
@@ -1320,7 +1627,7 @@ public class MPD {
             }
         }
         if (null != artists) {
-            Collections.sort(artists);
+            sortItems(artists);
         }
         return artists;
     }
@@ -1336,7 +1643,7 @@ public class MPD {
             }
         }
         if (null != artists) {
-            Collections.sort(artists);
+            sortItems(artists);
         }
         return artists;
     }
@@ -1371,13 +1678,19 @@ public class MPD {
     }
 
     public void addToPlaylist(String playlistName, Collection<Music> c) throws MPDServerException {
+        addToPlaylist(playlistName, c, null);
+    }
+
+    public void addToPlaylist(String playlistName, Collection<Music> c, BulkProgressListener listener) throws MPDServerException {
         if (null == c || c.size() < 1) {
             return;
         }
+        List<MPDCommand> commands = new ArrayList<MPDCommand>(c.size());
         for (Music m : c) {
-            getMpdConnection().queueCommand(MPDCommand.MPD_CMD_PLAYLIST_ADD, playlistName, m.getFullpath());
+            commands.add(new MPDCommand(MPDCommand.MPD_CMD_PLAYLIST_ADD, playlistName, m.getFullpath()));
         }
-        getMpdConnection().sendCommandQueue();
+        getMpdConnection().sendPipelined(commands, MPDConnection.DEFAULT_CHUNK_SIZE,
+                MPDConnection.DEFAULT_PIPELINE_WINDOW, listener);
     }
 
     public void addToPlaylist(String playlistName, FilesystemTreeEntry entry) throws MPDServerException {
@@ -1436,8 +1749,13 @@ public class MPD {
             @Override
             public void run() {
                 try {
-                    final ArrayList<Music> songs = new ArrayList<Music>(getSongs(artist, album));
-                    getPlaylist().addAll(songs);
+                    String[] filter = mpdConnection.isVersionAtLeast(0, 16) ? serverSongFilter(artist, album) : null;
+                    if (filter != null) {
+                        getPlaylist().findAdd(filter);
+                    } else {
+                        final ArrayList<Music> songs = new ArrayList<Music>(getSongs(artist, album));
+                        getPlaylist().addAll(songs);
+                    }
                 } catch (MPDServerException e) {
                     e.printStackTrace();
                 }
@@ -1535,7 +1853,13 @@ public class MPD {
     }
 
     public void addToPlaylist(String playlistName, Artist artist, Album album) throws MPDServerException {
-        addToPlaylist(playlistName, new ArrayList<Music>(getSongs(artist, album)));
+        String[] filter = mpdConnection.isVersionAtLeast(0, 21) ? serverSongFilter(artist, album) : null;
+        if (filter != null) {
+            // Older servers only do substring matches with searchaddpl, don't use it there
+            mpdConnection.sendCommand(MPDCommand.MPD_CMD_SEARCH_ADD_PLAYLIST, playlistName, filterExpression(filter));
+        } else {
+            addToPlaylist(playlistName, new ArrayList<Music>(getSongs(artist, album)));
+        }
     }
 
     public void addToPlaylist(String playlistName, Music music) throws MPDServerException {
@@ -11,8 +11,10 @@ public class MPDCommand extends AbstractCommand {
     public static final String MPD_CMD_CLEARERROR = "clearerror";
     public static final String MPD_CMD_CLOSE = "close";
     public static final String MPD_CMD_COUNT = "count";
+    public static final String MPD_CMD_CURRENT_SONG = "currentsong";
     public static final String MPD_CMD_CROSSFADE = "crossfade";
     public static final String MPD_CMD_FIND = "find";
+    public static final String MPD_CMD_FIND_ADD = "findadd";
     public static final String MPD_CMD_KILL = "kill";
     public static final String MPD_CMD_LIST_TAG = "list";
     public static final String MPD_CMD_LISTALL = "listall";
@@ -31,8 +33,10 @@ public class MPDCommand extends AbstractCommand {
     public static final String MPD_CMD_SINGLE = "single";
     public static final String MPD_CMD_RANDOM = "random";
     public static final String MPD_CMD_SEARCH = "search";
+    public static final String MPD_CMD_SEARCH_ADD_PLAYLIST = "searchaddpl";
     public static final String MPD_CMD_SEEK = "seek";
     public static final String MPD_CMD_SEEK_ID = "seekid";
+    public static final String MPD_CMD_SEEK_CURRENT = "seekcur";
     public static final String MPD_CMD_STATISTICS = "stats";
     public static final String MPD_CMD_STATUS = "status";
     public static final String MPD_CMD_STOP = "stop";
@@ -41,12 +45,29 @@ public class MPDCommand extends AbstractCommand {
     public static final String MPD_CMD_OUTPUTENABLE = "enableoutput";
     public static final String MPD_CMD_OUTPUTDISABLE = "disableoutput";
     public static final String MPD_CMD_PLAYLIST_INFO = "listplaylistinfo";
+    public static final String MPD_CMD_QUEUE_INFO = "playlistinfo";
     public static final String MPD_CMD_PLAYLIST_ADD = "playlistadd";
     public static final String MPD_CMD_PLAYLIST_MOVE = "playlistmove";
     public static final String MPD_CMD_PLAYLIST_DEL = "playlistdelete";
 
     public static final List<String> NON_RETRYABLE_COMMANDS = Arrays.asList(MPD_CMD_NEXT,
-            MPD_CMD_PREV, MPD_CMD_PLAYLIST_ADD, MPD_CMD_PLAYLIST_MOVE, MPD_CMD_PLAYLIST_DEL);
+            MPD_CMD_PREV, MPD_CMD_PLAYLIST_ADD, MPD_CMD_PLAYLIST_MOVE, MPD_CMD_PLAYLIST_DEL, MPD_CMD_FIND_ADD,
+            MPD_CMD_SEARCH_ADD_PLAYLIST);
+
+    /**
+     * Commands that only read the server state, identical ones waiting to be sent at the same time share one round
+     * trip.
+     */
+    public static final List<String> READ_ONLY_COMMANDS = Arrays.asList(MPD_CMD_STATUS, MPD_CMD_STATISTICS,
+            MPD_CMD_COUNT, MPD_CMD_FIND, MPD_CMD_SEARCH, MPD_CMD_LIST_TAG, MPD_CMD_LISTALL, MPD_CMD_LISTALLINFO,
+            MPD_CMD_LISTPLAYLISTS, MPD_CMD_LSDIR, MPD_CMD_OUTPUTS, MPD_CMD_PLAYLIST_INFO,
+            MPDPlaylist.MPD_CMD_PLAYLIST_LIST, MPDPlaylist.MPD_CMD_PLAYLIST_CHANGES, MPD_CMD_QUEUE_INFO,
+            MPD_CMD_CURRENT_SONG);
+
+    /**
+     * Maximum number of commands sent in one command list when adding many songs one by one.
+     */
+    public static final int MAX_COMMANDS_PER_LIST = 500;
 
     public static final String MPD_CMD_IDLE = "idle";
     public static final String MPD_CMD_PING = "ping";
@@ -75,6 +96,8 @@ public class MPDCommand extends AbstractCommand {
 
     protected boolean sentToServer = false;
     protected boolean synchronous = true;
+    // Told right before the command is written, see writing()
+    private volatile Runnable writeListener;
 
     public MPDCommand(String _command, String... _args) {
         super(_command, _args);
@@ -89,6 +112,10 @@ public class MPDCommand extends AbstractCommand {
         return !NON_RETRYABLE_COMMANDS.contains(command);
     }
 
+    public static boolean isReadOnly(String command) {
+        return READ_ONLY_COMMANDS.contains(command);
+    }
+
     public boolean isSentToServer() {
         return sentToServer;
     }
@@ -97,6 +124,20 @@ public class MPDCommand extends AbstractCommand {
         this.sentToServer = sentToServer;
     }
 
+    void setWriteListener(Runnable writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    /*
+     * Called by the connection right before the command is written to the server, each time it is.
+     */
+    void writing() {
+        Runnable listener = writeListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
     public boolean isSynchronous() {
         return synchronous;
     }
@@ -0,0 +1,36 @@
+package org.a0z.mpdlocal;
+
+import java.util.List;
+
+/**
+ * Queued commands sent to the server as one command list.
+ */
+class MPDCommandList extends MPDCommand {
+
+    private final List<MPDCommand> commands;
+
+    MPDCommandList(List<MPDCommand> commands, boolean withSeparator) {
+        super(withSeparator ? MPDConnection.MPD_CMD_START_BULK_OK : MPDConnection.MPD_CMD_START_BULK);
+        this.commands = commands;
+    }
+
+    @Override
+    public void encode(CommandBuffer out) {
+        out.append(command).append('\n');
+        for (MPDCommand mpdCommand : commands) {
+            mpdCommand.encode(out);
+        }
+        out.append(MPDConnection.MPD_CMD_END_BULK).append('\n');
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder outBuf = new StringBuilder();
+        outBuf.append(command).append('\n');
+        for (MPDCommand mpdCommand : commands) {
+            outBuf.append(mpdCommand.toString());
+        }
+        outBuf.append(MPDConnection.MPD_CMD_END_BULK).append('\n');
+        return outBuf.toString();
+    }
+}
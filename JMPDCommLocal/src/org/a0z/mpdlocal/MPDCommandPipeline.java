@@ -0,0 +1,48 @@
+package org.a0z.mpdlocal;
+
+import org.a0z.mpdlocal.event.BulkProgressListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Commands split into command lists that are pipelined on one connection: up to <code>window</code> lists are written
+ * before the response to the first one is read, so the round trip is paid once per window instead of once per list.
+ */
+class MPDCommandPipeline extends MPDCommand {
+
+    private final List<MPDCommandList> chunks;
+    private final int[] chunkEnds;
+    private final int total;
+    private final int window;
+    private final BulkProgressListener listener;
+
+    MPDCommandPipeline(List<MPDCommand> commands, int chunkSize, int window, BulkProgressListener listener) {
+        super(MPDConnection.MPD_CMD_START_BULK);
+        int chunkCount = (commands.size() + chunkSize - 1) / chunkSize;
+        this.chunks = new ArrayList<MPDCommandList>(chunkCount);
+        this.chunkEnds = new int[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            int end = Math.min(commands.size(), (i + 1) * chunkSize);
+            chunks.add(new MPDCommandList(commands.subList(i * chunkSize, end), false));
+            chunkEnds[i] = end;
+        }
+        this.total = commands.size();
+        this.window = Math.max(1, window);
+        this.listener = listener;
+    }
+
+    List<MPDCommandList> getChunks() {
+        return chunks;
+    }
+
+    int getWindow() {
+        return window;
+    }
+
+    void chunkDone(int chunk) {
+        if (listener != null) {
+            listener.bulkProgress(chunkEnds[chunk], total);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.a0z.mpdlocal;
+
+import org.a0z.mpdlocal.event.ResponseLineListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command whose response lines are handed to a listener as they are read instead of being collected in a list.
+ */
+class MPDCommandStream extends MPDCommand {
+
+    private final MPDCommand mpdCommand;
+    private final ResponseLineListener listener;
+    private int lines = 0;
+    private boolean recording = false;
+    private List<String> recorded;
+    private int maxRecorded;
+
+    MPDCommandStream(MPDCommand mpdCommand, ResponseLineListener listener) {
+        super(mpdCommand.command, mpdCommand.args, true);
+        this.mpdCommand = mpdCommand;
+        this.listener = listener;
+    }
+
+    @Override
+    public void encode(CommandBuffer out) {
+        mpdCommand.encode(out);
+    }
+
+    @Override
+    public String toString() {
+        return mpdCommand.toString();
+    }
+
+    void lineReceived(String line) {
+        lines++;
+        if (recorded != null) {
+            if (recorded.size() < maxRecorded) {
+                recorded.add(line);
+            } else {
+                recorded = null;
+            }
+        }
+        listener.lineReceived(line);
+    }
+
+    /*
+     * Also keeps the lines, up to maxLines, so they can be handed to other callers waiting for the same response.
+     */
+    void record(int maxLines) {
+        recording = true;
+        recorded = new ArrayList<String>();
+        maxRecorded = maxLines;
+    }
+
+    /*
+     * The lines received since record() was called, null if there were more than it allowed.
+     */
+    List<String> getRecorded() {
+        return recorded;
+    }
+
+    boolean isRecording() {
+        return recording;
+    }
+
+    /*
+     * Once a line went to the listener the command can't be retried, the listener would see it twice.
+     */
+    boolean hasEmitted() {
+        return lines > 0;
+    }
+
+    int getLineCount() {
+        return lines;
+    }
+}
@@ -1,5 +1,7 @@
 package org.a0z.mpdlocal;
 
+import org.a0z.mpdlocal.event.BulkProgressListener;
+import org.a0z.mpdlocal.event.ResponseLineListener;
 import org.a0z.mpdlocal.exception.MPDConnectionException;
 import org.a0z.mpdlocal.exception.MPDNoResponseException;
 import org.a0z.mpdlocal.exception.MPDServerException;
@@ -7,6 +9,7 @@ import org.a0z.mpdlocal.exception.MPDServerException;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -35,6 +38,12 @@ public abstract class MPDConnection {
     protected static final String MPD_CMD_END_BULK = "command_list_end";
     protected static final String POOL_THREAD_NAME_PREFIX = "pool";
 
+    /**
+     * Command list size and number of lists in flight used for bulk operations.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = MPDCommand.MAX_COMMANDS_PER_LIST;
+    public static final int DEFAULT_PIPELINE_WINDOW = 4;
+
     protected InetAddress hostAddress;
     protected int hostPort;
 
@@ -52,6 +61,22 @@ public abstract class MPDConnection {
 
     protected String password = null;
 
+    // Whether the server talks UTF-8, commands are then encoded without going through the stream writer
+    protected volatile boolean utf8 = false;
+
+    // Shared by all connections, so sessions asking the same server the same thing share the answer
+    private static final SingleFlight IN_FLIGHT = new SingleFlight();
+
+    // Longest streamed response kept for callers waiting on it, larger ones are sent again for each of them
+    private static final int MAX_SHARED_STREAM_LINES = 5000;
+
+    private static final ThreadLocal<CommandBuffer> COMMAND_BUFFER = new ThreadLocal<CommandBuffer>() {
+        @Override
+        protected CommandBuffer initialValue() {
+            return new CommandBuffer();
+        }
+    };
+
     MPDConnection(InetAddress server, int port, String password, int readWriteTimeout) throws MPDServerException {
         this(server, port, readWriteTimeout, 1, password);
     }
@@ -138,7 +163,8 @@ public abstract class MPDConnection {
                     result[i] = Integer.parseInt(tmp[i]);
 
                 // Use UTF-8 when needed
-                if (result[0] > 0 || result[1] >= 10) {
+                utf8 = result[0] > 0 || result[1] >= 10;
+                if (utf8) {
                     setOutputStream(new OutputStreamWriter(getSocket().getOutputStream(), "UTF-8"));
                     setInputStream(new InputStreamReader(getSocket().getInputStream(), "UTF-8"));
                 } else {
@@ -186,6 +212,21 @@ public abstract class MPDConnection {
         return mpdVersion;
     }
 
+    /**
+     * Tells whether the server is at least version <code>major.minor</code>.
+     *
+     * @param major major version.
+     * @param minor minor version.
+     * @return true if the server version is known and not older.
+     */
+    boolean isVersionAtLeast(int major, int minor) {
+        int[] version = mpdVersion;
+        if (version == null || version.length < 2) {
+            return false;
+        }
+        return version[0] > major || (version[0] == major && version[1] >= minor);
+    }
+
     public InetAddress getHostAddress() {
         return hostAddress;
     }
@@ -210,16 +251,18 @@ public abstract class MPDConnection {
         commandQueue.add(command);
     }
 
+    /*
+     * Splits a command_list_ok_begin response, one part per command. Empty responses are kept so that parts stay
+     * aligned with the commands.
+     */
     static List<String[]> separatedQueueResults(List<String> lines) {
         List<String[]> result = new ArrayList<String[]>();
         ArrayList<String> lineCache = new ArrayList<String>();
 
         for (String line : lines) {
-            if (line.equals(MPD_CMD_BULK_SEP)) { // new part
-                if (lineCache.size() != 0) {
-                    result.add((String[]) lineCache.toArray(new String[0]));
-                    lineCache.clear();
-                }
+            if (line.equals(MPD_CMD_BULK_SEP)) { // end of part
+                result.add((String[]) lineCache.toArray(new String[0]));
+                lineCache.clear();
             } else
                 lineCache.add(line);
         }
@@ -233,22 +276,124 @@ public abstract class MPDConnection {
         return separatedQueueResults(sendCommandQueue(true));
     }
 
+    /**
+     * Sends <code>commands</code> as one command list, bypassing the shared command queue. The server runs them
+     * without interleaving commands from other clients.
+     *
+     * @param commands commands to send.
+     * @return the response of each command.
+     * @throws MPDServerException if an error occur while contacting server.
+     */
+    public List<String[]> sendCommandsSeparated(MPDCommand... commands) throws MPDServerException {
+        return separatedQueueResults(sendRawCommand(new MPDCommandList(Arrays.asList(commands), true)));
+    }
+
     public List<String> sendCommandQueue() throws MPDServerException {
         return sendCommandQueue(false);
     }
 
     List<String> sendCommandQueue(boolean withSeparator) throws MPDServerException {
-        String commandstr = (withSeparator ? MPD_CMD_START_BULK_OK : MPD_CMD_START_BULK) + "\n";
-        for (MPDCommand command : commandQueue) {
-            commandstr += command.toString();
-        }
-        commandstr += MPD_CMD_END_BULK + "\n";
+        MPDCommandList commandList = new MPDCommandList(commandQueue, withSeparator);
         commandQueue = new ArrayList<MPDCommand>();
-        return sendRawCommand(new MPDCommand(commandstr));
+        return sendRawCommand(commandList);
+    }
+
+    /**
+     * Sends the queued commands as several pipelined command lists, see
+     * {@link #sendPipelined(List, int, int, BulkProgressListener)}.
+     *
+     * @param listener notified after each command list, may be null.
+     * @throws MPDServerException if an error occur while contacting server.
+     */
+    public void sendCommandQueuePipelined(BulkProgressListener listener) throws MPDServerException {
+        List<MPDCommand> commands = commandQueue;
+        commandQueue = new ArrayList<MPDCommand>();
+        sendPipelined(commands, DEFAULT_CHUNK_SIZE, DEFAULT_PIPELINE_WINDOW, listener);
+    }
+
+    /**
+     * Sends many commands as command lists of at most <code>chunkSize</code> commands, so that none of them hits the
+     * server's <code>max_command_list_size</code>. Up to <code>window</code> lists are in flight at a time. If the
+     * server rejects a list, no further list is sent; the lists already in flight are still drained and the first error
+     * is thrown.
+     *
+     * @param commands  commands to send.
+     * @param chunkSize maximum number of commands per command list.
+     * @param window    maximum number of command lists sent and not yet acknowledged.
+     * @param listener  notified after each command list, may be null.
+     * @throws MPDServerException if an error occur while contacting server.
+     */
+    public void sendPipelined(List<MPDCommand> commands, int chunkSize, int window,
+                              BulkProgressListener listener) throws MPDServerException {
+        if (commands.isEmpty()) {
+            return;
+        }
+        sendRawCommand(new MPDCommandPipeline(commands, Math.max(1, chunkSize), window, listener));
+    }
+
+    /**
+     * Sends a command and hands the lines of its response to <code>listener</code> as they are read, so large
+     * responses are never held in memory. The command is only retried if no line reached the listener yet. Identical
+     * read-only commands streamed before the first of them was written share one round trip as long as the response is
+     * short enough to be kept, the lines are then replayed to the waiting callers' listeners.
+     *
+     * @param command  command to send.
+     * @param listener called for each line, on the connection's thread or on the caller's when replayed.
+     * @return the number of lines received.
+     * @throws MPDServerException if an error occur while contacting server.
+     */
+    public int sendStreamed(MPDCommand command, ResponseLineListener listener) throws MPDServerException {
+        final MPDCommandStream stream = new MPDCommandStream(command, listener);
+        if (!isShareable(command)) {
+            syncedWriteRead(stream);
+            return stream.getLineCount();
+        }
+        List<String> shared = IN_FLIGHT.execute(inFlightKey(command), new SingleFlight.Request() {
+            @Override
+            public List<String> send(Runnable writing) throws MPDServerException {
+                stream.record(MAX_SHARED_STREAM_LINES);
+                stream.setWriteListener(writing);
+                syncedWriteRead(stream);
+                return stream.getRecorded();
+            }
+        });
+        if (stream.isRecording()) {
+            // Sent it, the listener already got the lines
+            return stream.getLineCount();
+        }
+        if (shared == null) {
+            syncedWriteRead(stream);
+        } else {
+            for (String line : shared) {
+                stream.lineReceived(line);
+            }
+        }
+        return stream.getLineCount();
+    }
+
+    public List<String> sendRawCommand(final MPDCommand command) throws MPDServerException {
+        if (command.getClass() != MPDCommand.class || !isShareable(command)) {
+            return syncedWriteRead(command);
+        }
+        List<String> shared = IN_FLIGHT.execute(inFlightKey(command), new SingleFlight.Request() {
+            @Override
+            public List<String> send(Runnable writing) throws MPDServerException {
+                command.setWriteListener(writing);
+                return syncedWriteRead(command);
+            }
+        });
+        // Null when it was shared with a stream too long to keep
+        return shared != null ? shared : syncedWriteRead(command);
     }
 
-    public List<String> sendRawCommand(MPDCommand command) throws MPDServerException {
-        return syncedWriteRead(command);
+    private boolean isShareable(MPDCommand command) {
+        // Pool threads run requests inline, waiting there for a request queued behind them would deadlock
+        return MPDCommand.isReadOnly(command.getCommand())
+                && !Thread.currentThread().getName().startsWith(POOL_THREAD_NAME_PREFIX);
+    }
+
+    private String inFlightKey(MPDCommand command) {
+        return hostAddress + ":" + hostPort + "/" + password + "\n" + command.toString();
     }
 
 
@@ -263,17 +408,41 @@ public abstract class MPDConnection {
     }
 
     private void writeToServer(MPDCommand command) throws IOException {
-        OutputStreamWriter writer = getOutputStream();
-        getOutputStream().write(command.toString());
-        getOutputStream().flush();
+        command.writing();
+        if (utf8) {
+            // Encode straight to bytes, the writer is only needed for the legacy charset
+            CommandBuffer buffer = COMMAND_BUFFER.get();
+            buffer.reset();
+            command.encode(buffer);
+            OutputStream out = getSocket().getOutputStream();
+            buffer.writeTo(out);
+            out.flush();
+        } else {
+            getOutputStream().write(command.toString());
+            getOutputStream().flush();
+        }
         command.setSentToServer(true);
     }
 
     private ArrayList<String> readFromServer() throws MPDServerException, IOException {
-        ArrayList<String> result = new ArrayList<String>();
-        BufferedReader in = new BufferedReader(getInputStream(), 1024);
+        return readFromServer(new BufferedReader(getInputStream(), 1024));
+    }
 
+    /*
+     * Reads one response. Pipelined responses must all be read through the same reader since it may buffer the
+     * beginning of the next response.
+     */
+    private ArrayList<String> readFromServer(BufferedReader in) throws MPDServerException, IOException {
+        ArrayList<String> result = new ArrayList<String>();
+        readFromServer(in, result, null);
+        return result;
+    }
 
+    /*
+     * Reads one response into result, or into stream if it isn't null.
+     */
+    private void readFromServer(BufferedReader in, List<String> result, MPDCommandStream stream)
+            throws MPDServerException, IOException {
         boolean dataReaded = false;
         for (String line = in.readLine(); line != null; line = in.readLine()) {
             dataReaded = true;
@@ -289,7 +458,11 @@ public abstract class MPDConnection {
                             + line.substring(MPD_RESPONSE_ERR.length()));
                 }
             }
-            result.add(line);
+            if (stream != null) {
+                stream.lineReceived(line);
+            } else {
+                result.add(line);
+            }
         }
         if (!dataReaded) {
             // Close socket if there is no response... Something is wrong
@@ -297,7 +470,6 @@ public abstract class MPDConnection {
             // MPD shutdown..)
             throw new MPDNoResponseException("Connection lost");
         }
-        return result;
     }
 
     private List<String> innerSyncedWriteRead(MPDCommand command)
@@ -325,6 +497,59 @@ public abstract class MPDConnection {
         }
     }
 
+    private List<String> innerStreamedWriteRead(MPDCommandStream stream, MPDCommand sent)
+            throws MPDServerException {
+        if (!isConnected())
+            throw new MPDConnectionException("No connection to server");
+
+        try {
+            writeToServer(sent);
+            readFromServer(new BufferedReader(getInputStream(), 8192), null, stream);
+            return new ArrayList<String>();
+        } catch (IOException e) {
+            throw new MPDConnectionException(e);
+        }
+    }
+
+    private List<String> innerPipelinedWriteRead(MPDCommandPipeline pipeline, MPDCommand sent)
+            throws MPDServerException {
+        if (!isConnected())
+            throw new MPDConnectionException("No connection to server");
+
+        List<MPDCommandList> chunks = pipeline.getChunks();
+        List<String> result = new ArrayList<String>();
+        MPDServerException failure = null;
+        int written = 0;
+        int read = 0;
+        try {
+            BufferedReader in = new BufferedReader(getInputStream(), 1024);
+            while (read < written || (failure == null && written < chunks.size())) {
+                while (failure == null && written < chunks.size() && written - read < pipeline.getWindow()) {
+                    writeToServer(chunks.get(written++));
+                    sent.setSentToServer(true);
+                }
+                try {
+                    result.addAll(readFromServer(in));
+                    pipeline.chunkDone(read);
+                } catch (MPDConnectionException e) {
+                    throw e;
+                } catch (MPDServerException e) {
+                    // Rejected list, the ones already written are still processed by the server
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                read++;
+            }
+        } catch (IOException e) {
+            throw new MPDConnectionException(e);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+
     private List<String> syncedWriteAsyncRead(MPDCommand command) throws MPDServerException {
         command.setSynchronous(false);
         return processRequest(command);
@@ -384,9 +609,26 @@ public abstract class MPDConnection {
     class MpdCallable extends MPDCommand implements Callable<MPDCommandResult> {
 
         private int retry = 0;
+        private final MPDCommand mpdCommand;
 
         public  MpdCallable(MPDCommand mpdCommand) {
             super(mpdCommand.command, mpdCommand.args, mpdCommand.isSynchronous());
+            this.mpdCommand = mpdCommand;
+        }
+
+        @Override
+        public void encode(CommandBuffer out) {
+            mpdCommand.encode(out);
+        }
+
+        @Override
+        public String toString() {
+            return mpdCommand.toString();
+        }
+
+        @Override
+        void writing() {
+            mpdCommand.writing();
         }
 
         @Override
@@ -399,7 +641,11 @@ public abstract class MPDConnection {
                     if (!innerIsConnected()) {
                         innerConnect();
                     }
-                    if (isSynchronous()) {
+                    if (mpdCommand instanceof MPDCommandStream) {
+                        result.setResult(innerStreamedWriteRead((MPDCommandStream) mpdCommand, this));
+                    } else if (mpdCommand instanceof MPDCommandPipeline) {
+                        result.setResult(innerPipelinedWriteRead((MPDCommandPipeline) mpdCommand, this));
+                    } else if (isSynchronous()) {
                         result.setResult(innerSyncedWriteRead(this));
                     } else {
                         result.setResult(innerSyncedWriteAsyncRead(this));
@@ -415,7 +661,9 @@ public abstract class MPDConnection {
                 } catch (MPDServerException ex1) {
                     handleConnectionFailure(result, ex1);
                 }
-                retryable = isRetryable(command) || !this.isSentToServer();
+                retryable = (isRetryable(command) && !(mpdCommand instanceof MPDCommandPipeline)
+                        && !(mpdCommand instanceof MPDCommandStream && ((MPDCommandStream) mpdCommand).hasEmitted()))
+                        || !this.isSentToServer();
                 retry++;
             }
 
@@ -2,13 +2,17 @@ package org.a0z.mpdlocal;
 
 
 import org.a0z.mpdlocal.event.AbstractStatusChangeListener;
+import org.a0z.mpdlocal.event.BulkProgressListener;
 import org.a0z.mpdlocal.exception.MPDClientException;
 import org.a0z.mpdlocal.exception.MPDServerException;
 
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * MPD Playlist controller.
@@ -56,10 +60,47 @@ public class MPDPlaylist extends AbstractStatusChangeListener {
 	 * @see Music
 	 */
 	public void addAll(Collection<Music> c) throws MPDServerException {
+		addAll(c, null);
+	}
+
+	/**
+	 * Adds a <code>Collection</code> of <code>Music</code> to playlist. The adds are sent as several pipelined command
+	 * lists.
+	 *
+	 * @param c
+	 *           <code>Collection</code> of <code>Music</code> to be added to playlist.
+	 * @param listener
+	 *           notified as the server processes the adds, may be null.
+	 * @throws MPDServerException
+	 *            if an error occur while contacting server.
+	 * @see MPDConnection#sendPipelined(List, int, int, BulkProgressListener)
+	 */
+	public void addAll(Collection<Music> c, BulkProgressListener listener) throws MPDServerException {
+		List<MPDCommand> commands = new ArrayList<MPDCommand>(c.size());
 		for (Music m : c)
-			this.mpd.getMpdConnection().queueCommand(MPD_CMD_PLAYLIST_ADD, m.getFullpath());
+			commands.add(new MPDCommand(MPD_CMD_PLAYLIST_ADD, m.getFullpath()));
 
-		this.mpd.getMpdConnection().sendCommandQueue();
+		try {
+			this.mpd.getMpdConnection().sendPipelined(commands, MPDConnection.DEFAULT_CHUNK_SIZE,
+					MPDConnection.DEFAULT_PIPELINE_WINDOW, listener);
+		} catch (MPDServerException e) {
+			// Part of the songs may have been added
+			refreshAfterFailure();
+			throw e;
+		}
+		this.refresh();
+	}
+
+	/**
+	 * Adds all songs matching a search to playlist, the search is done by the server (MPD 0.16 and later).
+	 *
+	 * @param args
+	 *           type and value pairs, exact matches as with <code>find</code>.
+	 * @throws MPDServerException
+	 *            if an error occur while contacting server.
+	 */
+	public void findAdd(String[] args) throws MPDServerException {
+		this.mpd.getMpdConnection().sendCommand(MPDCommand.MPD_CMD_FIND_ADD, args);
 		this.refresh();
 	}
 
@@ -177,6 +218,18 @@ public class MPDPlaylist extends AbstractStatusChangeListener {
 		}
 	}
 
+	/*
+	 * Refreshes after a bulk edit failed part way, a failure here is only logged so the caller gets the error of the
+	 * edit itself.
+	 */
+	private void refreshAfterFailure() {
+		try {
+			refresh();
+		} catch (MPDServerException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Reload playlist content. <code>refresh</code> has better performance and is more server friendly, use it whenever possible.
 	 *
@@ -187,10 +240,11 @@ public class MPDPlaylist extends AbstractStatusChangeListener {
 	 */
 	private int refresh() throws MPDServerException {
 		if (firstRefreash) {
-			// TODO should be atomic
-			MPDStatus status = this.mpd.getStatus();
-			List<String> response = this.mpd.getMpdConnection().sendCommand(MPD_CMD_PLAYLIST_LIST);
-			List<Music> playlist = Music.getMusicFromList(response, false);
+			MPDStatusCache.Request request = this.mpd.statusRequested();
+			List<String[]> responses = this.mpd.getMpdConnection().sendCommandsSeparated(
+					new MPDCommand(MPDCommand.MPD_CMD_STATUS), new MPDCommand(MPD_CMD_PLAYLIST_LIST));
+			MPDStatus status = this.mpd.statusReceived(Arrays.asList(responses.get(0)), request);
+			List<Music> playlist = Music.getMusicFromList(Arrays.asList(responses.get(1)), false);
 
 			list.clear();
 			list.addAll(playlist);
@@ -213,10 +267,13 @@ public class MPDPlaylist extends AbstractStatusChangeListener {
 	 * @return current playlist version.
 	 */
 	private int refresh(int playlistVersion) throws MPDServerException {
-		// TODO should be atomic
-		MPDStatus status = this.mpd.getStatus();
-		List<String> response = this.mpd.getMpdConnection().sendCommand(MPD_CMD_PLAYLIST_CHANGES, Integer.toString(playlistVersion));
-		List<Music> changes = Music.getMusicFromList(response, false);
+		// Status and changes in one command list, so the changes are exactly those up to the status version
+		MPDStatusCache.Request request = this.mpd.statusRequested();
+		List<String[]> responses = this.mpd.getMpdConnection().sendCommandsSeparated(
+				new MPDCommand(MPDCommand.MPD_CMD_STATUS),
+				new MPDCommand(MPD_CMD_PLAYLIST_CHANGES, Integer.toString(playlistVersion)));
+		MPDStatus status = this.mpd.statusReceived(Arrays.asList(responses.get(0)), request);
+		List<Music> changes = Music.getMusicFromList(Arrays.asList(responses.get(1)), false);
 
 		int newLength = status.getPlaylistLength();
 		int oldLength = this.list.size();
@@ -435,6 +492,225 @@ public class MPDPlaylist extends AbstractStatusChangeListener {
 		this.refresh();
 	}
 
+	/**
+	 * Reorders the playlist to match <code>targetIds</code>. Songs in the longest subsequence already in the right
+	 * relative order stay where they are and every other song is moved once, so the number of <code>moveid</code> sent
+	 * is minimal. All moves are sent in one batch.
+	 *
+	 * @param targetIds
+	 *           ids of all the songs of the playlist, in the wanted order.
+	 * @return number of moves sent.
+	 * @throws IllegalArgumentException
+	 *            if <code>targetIds</code> is not an ordering of the songs of the playlist.
+	 * @throws MPDServerException
+	 *            if an error occur while contacting server.
+	 */
+	public int reorder(int[] targetIds) throws MPDServerException {
+		refresh();
+		List<Music> songs = list.getMusic();
+		int n = songs.size();
+		if (targetIds.length != n)
+			throw new IllegalArgumentException("Expected " + n + " song ids, got " + targetIds.length);
+
+		Map<Integer, Integer> positions = new HashMap<Integer, Integer>(n * 2);
+		for (int i = 0; i < n; i++) {
+			Music song = songs.get(i);
+			if (song == null)
+				throw new IllegalArgumentException("Playlist is not fully loaded");
+			positions.put(song.getSongId(), i);
+		}
+		int[] sequence = new int[n];
+		boolean[] seen = new boolean[n];
+		for (int k = 0; k < n; k++) {
+			Integer position = positions.get(targetIds[k]);
+			if (position == null || seen[position])
+				throw new IllegalArgumentException("Not a playlist song id or duplicated: " + targetIds[k]);
+			seen[position] = true;
+			sequence[k] = position;
+		}
+
+		boolean[] keep = longestIncreasingSubsequence(sequence);
+
+		// Songs still to be moved, by position in the playlist before reordering
+		int[] unmoved = new int[n + 1];
+		for (int k = 0; k < n; k++) {
+			if (!keep[k])
+				fenwickAdd(unmoved, sequence[k], 1);
+		}
+
+		/*
+		 * The songs before k in the target order are already in order, moved ones right after the last song kept in
+		 * place before them (the anchor), or at the top if there is none. The song goes right after them, so its new
+		 * position is k plus the number of songs still to be moved that are located before the anchor.
+		 */
+		Batch batch = beginBatch();
+		int anchor = -1;
+		for (int k = 0; k < n; k++) {
+			if (keep[k]) {
+				anchor = sequence[k];
+				continue;
+			}
+			fenwickAdd(unmoved, sequence[k], -1);
+			int to = k + (anchor < 0 ? 0 : fenwickSum(unmoved, anchor));
+			batch.move(targetIds[k], to);
+		}
+		batch.commit();
+		return batch.size();
+	}
+
+	private static void fenwickAdd(int[] tree, int index, int delta) {
+		for (int i = index + 1; i < tree.length; i += i & -i)
+			tree[i] += delta;
+	}
+
+	// Sum of the values at 0..index
+	private static int fenwickSum(int[] tree, int index) {
+		int sum = 0;
+		for (int i = index + 1; i > 0; i -= i & -i)
+			sum += tree[i];
+		return sum;
+	}
+
+	/*
+	 * Marks the elements of one longest strictly increasing subsequence of values, O(n log n).
+	 */
+	private static boolean[] longestIncreasingSubsequence(int[] values) {
+		int n = values.length;
+		// tails[l] is the index of the smallest tail of an increasing subsequence of length l + 1
+		int[] tails = new int[n];
+		int[] previous = new int[n];
+		int length = 0;
+		for (int i = 0; i < n; i++) {
+			int low = 0;
+			int high = length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (values[tails[mid]] < values[i])
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			previous[i] = low > 0 ? tails[low - 1] : -1;
+			tails[low] = i;
+			if (low == length)
+				length++;
+		}
+
+		boolean[] result = new boolean[n];
+		for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i])
+			result[i] = true;
+		return result;
+	}
+
+	/**
+	 * Starts a batch of playlist edits. Edits are queued until {@link Batch#commit()} sends them as one command list,
+	 * after which the local copy of the playlist is refreshed once.
+	 *
+	 * @return a new, empty batch.
+	 */
+	public Batch beginBatch() {
+		return new Batch();
+	}
+
+	/**
+	 * Playlist edits sent together. Positions are interpreted by the server in order, each edit seeing the playlist as
+	 * left by the previous one. A batch can only be committed once.
+	 *
+	 * @see MPDPlaylist#beginBatch()
+	 */
+	public class Batch {
+		private final List<MPDCommand> commands = new ArrayList<MPDCommand>();
+		private boolean committed = false;
+
+		private Batch() {
+		}
+
+		private Batch queue(String command, String... args) {
+			if (committed)
+				throw new IllegalStateException("Batch already committed");
+			commands.add(new MPDCommand(command, args));
+			return this;
+		}
+
+		public Batch add(FilesystemTreeEntry entry) {
+			return queue(MPD_CMD_PLAYLIST_ADD, entry.getFullpath());
+		}
+
+		public Batch add(URL url) {
+			return queue(MPD_CMD_PLAYLIST_ADD, url.toString());
+		}
+
+		public Batch load(String file) {
+			return queue(MPD_CMD_PLAYLIST_LOAD, file);
+		}
+
+		public Batch moveByPosition(int from, int to) {
+			return queue(MPD_CMD_PLAYLIST_MOVE, Integer.toString(from), Integer.toString(to));
+		}
+
+		public Batch move(int songId, int to) {
+			return queue(MPD_CMD_PLAYLIST_MOVE_ID, Integer.toString(songId), Integer.toString(to));
+		}
+
+		public Batch swapByPosition(int song1, int song2) {
+			return queue(MPD_CMD_PLAYLIST_SWAP, Integer.toString(song1), Integer.toString(song2));
+		}
+
+		public Batch swap(int song1Id, int song2Id) {
+			return queue(MPD_CMD_PLAYLIST_SWAP_ID, Integer.toString(song1Id), Integer.toString(song2Id));
+		}
+
+		public Batch removeByIndex(int position) {
+			return queue(MPD_CMD_PLAYLIST_REMOVE, Integer.toString(position));
+		}
+
+		public Batch removeById(int songId) {
+			return queue(MPD_CMD_PLAYLIST_REMOVE_ID, Integer.toString(songId));
+		}
+
+		public Batch clear() {
+			return queue(MPD_CMD_PLAYLIST_CLEAR);
+		}
+
+		public Batch shuffle() {
+			return queue(MPD_CMD_PLAYLIST_SHUFFLE);
+		}
+
+		/**
+		 * Retrieves the number of queued edits.
+		 *
+		 * @return number of edits.
+		 */
+		public int size() {
+			return commands.size();
+		}
+
+		/**
+		 * Sends the queued edits and refreshes the playlist. Batches longer than
+		 * {@link MPDCommand#MAX_COMMANDS_PER_LIST} are split into several pipelined command lists.
+		 *
+		 * @throws MPDServerException
+		 *            if an error occur while contacting server. Edits before the failing one may have been applied,
+		 *            the playlist is refreshed anyway.
+		 */
+		public void commit() throws MPDServerException {
+			if (committed)
+				throw new IllegalStateException("Batch already committed");
+			committed = true;
+			if (commands.isEmpty())
+				return;
+
+			try {
+				mpd.getMpdConnection().sendPipelined(commands, MPDConnection.DEFAULT_CHUNK_SIZE,
+						MPDConnection.DEFAULT_PIPELINE_WINDOW, null);
+			} catch (MPDServerException e) {
+				refreshAfterFailure();
+				throw e;
+			}
+			refresh();
+		}
+	}
+
 	/**
 	 * Retrieves a string representation of the object.
 	 *
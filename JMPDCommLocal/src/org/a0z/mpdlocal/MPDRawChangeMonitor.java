@@ -3,14 +3,26 @@ package org.a0z.mpdlocal;
 import org.a0z.mpdlocal.exception.MPDServerException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * ${PROJECT_NAME}
  * Created by facetoe on 30/12/13.
  *
  * This class waits for changes from MPD and then passes the changes to any listeners.
-
+ *
+ * Listeners may subscribe to some subsystems only; the idle request then asks for the union of the subscriptions.
+ * Each listener is called on its own thread with the changes it subscribed to. Changes arriving while a listener is
+ * still busy are merged into a single pending call, so a slow listener neither delays the next idle nor the other
+ * listeners, and never has more than one call queued.
  */
 public class MPDRawChangeMonitor extends Thread {
 
@@ -19,16 +31,21 @@ public class MPDRawChangeMonitor extends Thread {
         void notifyError(Exception e);
     }
 
+    private static final String CHANGED = "changed: ";
+    // Longest wait between two attempts after errors
+    private static final int MAX_BACKOFF = 30000;
+
     protected int delay;
     protected MPD mpd;
-    protected boolean giveup;
-    private ArrayList<MPDRawChangeListener> changeListeners = new ArrayList<MPDRawChangeListener>();
+    protected volatile boolean giveup;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private final Object backoffLock = new Object();
 
     /**
      * Constructs a MPDStatusMonitor.
      *
      * @param mpd   MPD server to monitor.
-     * @param delay status query interval.
+     * @param delay wait after a failed idle request, doubled after each further failure.
      */
     public MPDRawChangeMonitor(MPD mpd, int delay) {
         this.mpd = mpd;
@@ -37,33 +54,113 @@ public class MPDRawChangeMonitor extends Thread {
     }
 
     public void run() {
+        // Initial status, later ones are read after each idle event
+        try {
+            mpd.getStatus();
+        } catch (MPDServerException e) {
+            System.err.println("Status read failed: " + e.getMessage());
+        }
+        int backoff = delay;
         while (!giveup) {
             try {
-                List<String> changes = mpd.waitForChanges();
+                List<String> changes = mpd.waitForChanges(subscribedSubsystems());
+                refreshStatus();
                 notifyChanges(changes);
+                backoff = delay;
             } catch (MPDServerException e) {
                 // This always gets thrown when killing the connection
-                if(!e.getMessage().equals("The MPD request has been canceled")) {
+                if(!giveup && !"The MPD request has been canceled".equals(e.getMessage())) {
                     notifyError(e);
                 }
+                backoff = sleepBeforeRetry(backoff);
+            }
+        }
+        for (Subscription subscription : subscriptions) {
+            subscription.executor.shutdown();
+        }
+    }
+
+    // Read the status once here, so listeners and MPD.getStatus() callers get it from memory
+    private void refreshStatus() {
+        try {
+            mpd.getStatusCache().refreshIfStale();
+        } catch (MPDServerException e) {
+            System.err.println("Status refresh failed: " + e.getMessage());
+        }
+    }
+
+    private int sleepBeforeRetry(int backoff) {
+        if (giveup || backoff <= 0) {
+            return backoff;
+        }
+        synchronized (backoffLock) {
+            try {
+                // Woken up by giveup
+                backoffLock.wait(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
+        return Math.min(MAX_BACKOFF, backoff * 2);
+    }
+
+    /*
+     * Union of the subscriptions, empty for all subsystems.
+     */
+    private Set<String> subscribedSubsystems() {
+        Set<String> subsystems = new LinkedHashSet<String>();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.subsystems.isEmpty()) {
+                return Collections.emptySet();
+            }
+            subsystems.addAll(subscription.subsystems);
+        }
+        return subsystems;
     }
 
     private void notifyChanges(List<String> changes) {
-        for (MPDRawChangeListener listener : changeListeners) {
-            listener.updateChanges(changes);
+        for (Subscription subscription : subscriptions) {
+            subscription.changed(changes);
         }
     }
 
-    private void notifyError(Exception e) {
-        for (MPDRawChangeListener listener : changeListeners) {
-            listener.notifyError(e);
+    private void notifyError(final Exception e) {
+        for (final Subscription subscription : subscriptions) {
+            subscription.execute(new Runnable() {
+                @Override
+                public void run() {
+                    subscription.listener.notifyError(e);
+                }
+            });
         }
     }
 
+    /**
+     * Adds a listener for the changes of all subsystems.
+     *
+     * @param listener listener to add.
+     */
     public void addMPDRawChangeListener(MPDRawChangeListener listener) {
-        changeListeners.add(listener);
+        addMPDRawChangeListener(listener, new String[0]);
+    }
+
+    /**
+     * Adds a listener for the changes of some subsystems. A new subscription takes effect with the next idle request.
+     *
+     * @param listener   listener to add.
+     * @param subsystems subsystems such as "player" or "database", all of them if none.
+     */
+    public void addMPDRawChangeListener(MPDRawChangeListener listener, String... subsystems) {
+        subscriptions.add(new Subscription(listener, subsystems));
+    }
+
+    public void removeMPDRawChangeListener(MPDRawChangeListener listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                subscriptions.remove(subscription);
+                subscription.executor.shutdown();
+            }
+        }
     }
 
     /**
@@ -71,9 +168,71 @@ public class MPDRawChangeMonitor extends Thread {
      */
     public void giveup() {
         this.giveup = true;
+        synchronized (backoffLock) {
+            backoffLock.notifyAll();
+        }
     }
 
     public boolean isGivingUp() {
         return this.giveup;
     }
+
+    private static class Subscription implements Runnable {
+        final MPDRawChangeListener listener;
+        final Set<String> subsystems;
+        final ExecutorService executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("change-listener"));
+
+        // Guarded by this
+        private final Set<String> pending = new LinkedHashSet<String>();
+        private boolean scheduled = false;
+
+        Subscription(MPDRawChangeListener listener, String... subsystems) {
+            this.listener = listener;
+            this.subsystems = new LinkedHashSet<String>(Arrays.asList(subsystems));
+        }
+
+        void changed(List<String> changes) {
+            synchronized (this) {
+                for (String change : changes) {
+                    if (subsystems.isEmpty() || (change.startsWith(CHANGED)
+                            && subsystems.contains(change.substring(CHANGED.length())))) {
+                        pending.add(change);
+                    }
+                }
+                if (pending.isEmpty() || scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            execute(this);
+        }
+
+        void execute(Runnable task) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // Removed or monitor stopped
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                List<String> changes;
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                    changes = new ArrayList<String>(pending);
+                    pending.clear();
+                }
+                try {
+                    listener.updateChanges(changes);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
 }
@@ -1,14 +1,19 @@
 package org.a0z.mpdlocal;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Class representing MPD Server status.
+ * Class representing MPD Server status. Instances published by {@link MPDStatusCache} are snapshots and are never
+ * updated afterwards.
  * 
  * @author Felipe Gustavo de Almeida
  * @version $Id: MPDStatus.java 2941 2005-02-09 02:34:21Z galmeida $
  */
-public class MPDStatus {
+public class MPDStatus implements Cloneable {
 	/**
 	 * MPD State: playing.
 	 */
@@ -29,6 +34,12 @@ public class MPDStatus {
 	 */
 	public static final String MPD_STATE_UNKNOWN = "unknown";
 
+	/**
+	 * Status fields that change on every read while playing. They follow the clock rather than events, see
+	 * {@link TrackPositionClock}.
+	 */
+	public static final List<String> CLOCK_FIELDS = Arrays.asList("time", "elapsed", "bitrate");
+
 	
 	private int playlistVersion;
 	private int playlistLength;
@@ -48,6 +59,7 @@ public class MPDStatus {
 	private String error;
 
 	private long elapsedTime;
+	private long elapsedMillis = -1;
 	private long totalTime;
 
 	private int crossfade;
@@ -58,6 +70,12 @@ public class MPDStatus {
 	private int bitsPerSample;
 	private int channels;
 
+	private Map<String, String> values = Collections.emptyMap();
+
+	private long version;
+	private long eventsSeen;
+	private long timestamp;
+
 
 	MPDStatus() {
 		volume = 0;
@@ -90,7 +108,11 @@ public class MPDStatus {
 		if (response == null)
 			return;
 		
+		Map<String, String> values = new LinkedHashMap<String, String>();
 		for (String line : response) {
+			int separator = line.indexOf(": ");
+			if (separator > 0)
+				values.put(line.substring(0, separator), line.substring(separator + 2));
 			try {
 				if (line.startsWith("volume:")) {
 					this.volume = Integer.parseInt(line.substring("volume: ".length()));
@@ -126,6 +148,8 @@ public class MPDStatus {
 					String[] time = line.substring("time: ".length()).split(":");
 					elapsedTime = Long.parseLong(time[0]);
 					totalTime = Long.parseLong(time[1]);
+				} else if (line.startsWith("elapsed:")) {
+					this.elapsedMillis = Math.round(Double.parseDouble(line.substring("elapsed: ".length())) * 1000);
 				} else if (line.startsWith("audio:")) {
 					String[] audio = line.substring("audio: ".length()).split(":");
 					try {
@@ -156,6 +180,77 @@ public class MPDStatus {
 				e.printStackTrace();
 			}
 		}
+		this.values = Collections.unmodifiableMap(values);
+	}
+
+	/*
+	 * Stamps a snapshot before it is published by MPDStatusCache.
+	 */
+	void stamp(long version, long eventsSeen, long timestamp) {
+		this.version = version;
+		this.eventsSeen = eventsSeen;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Retrieves the version of this snapshot. Versions increase with each status read, 0 means never read.
+	 * 
+	 * @return snapshot version.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Retrieves when this snapshot was read.
+	 * 
+	 * @return <code>System.nanoTime()</code> at the time the status was read.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	long getEventsSeen() {
+		return eventsSeen;
+	}
+
+	/**
+	 * Retrieves the status response as read, field names mapped to their raw values in response order.
+	 * 
+	 * @return unmodifiable map of the status fields.
+	 */
+	public Map<String, String> getValues() {
+		return values;
+	}
+
+	/**
+	 * Computes the fields of <code>status</code> that differ from <code>previous</code>. Changes of the
+	 * {@link #CLOCK_FIELDS} are left out unless <code>previous</code> is null or lacks them.
+	 * 
+	 * @param previous
+	 *           older status, null to get all fields.
+	 * @param status
+	 *           newer status.
+	 * @param removed
+	 *           receives the names of the fields present in <code>previous</code> only, may be null.
+	 * @return fields added or changed, with their new values.
+	 */
+	public static Map<String, String> diff(MPDStatus previous, MPDStatus status, List<String> removed) {
+		Map<String, String> changed = new LinkedHashMap<String, String>();
+		Map<String, String> old = previous == null ? Collections.<String, String>emptyMap() : previous.values;
+		for (Map.Entry<String, String> entry : status.values.entrySet()) {
+			if (old.containsKey(entry.getKey()) && CLOCK_FIELDS.contains(entry.getKey()))
+				continue;
+			if (!entry.getValue().equals(old.get(entry.getKey())))
+				changed.put(entry.getKey(), entry.getValue());
+		}
+		if (removed != null) {
+			for (String key : old.keySet()) {
+				if (!status.values.containsKey(key))
+					removed.add(key);
+			}
+		}
+		return changed;
 	}
 
 	/**
@@ -176,6 +271,30 @@ public class MPDStatus {
 		return elapsedTime;
 	}
 
+	/**
+	 * Retrieves current track elapsed time in milliseconds, as precise as the server reports it (MPD 0.16 and later
+	 * send milliseconds, older servers whole seconds).
+	 * 
+	 * @return current track elapsed time in milliseconds.
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis >= 0 ? elapsedMillis : elapsedTime * 1000;
+	}
+
+	/*
+	 * Copy of this snapshot with the elapsed time moved forward, see TrackPositionClock.
+	 */
+	MPDStatus withElapsedMillis(long millis) {
+		try {
+			MPDStatus copy = (MPDStatus) clone();
+			copy.elapsedMillis = millis;
+			copy.elapsedTime = millis / 1000;
+			return copy;
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
 	/**
 	 * Retrieves error message.
 	 * 
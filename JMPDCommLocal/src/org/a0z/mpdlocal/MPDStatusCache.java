@@ -0,0 +1,160 @@
+package org.a0z.mpdlocal;
+
+import org.a0z.mpdlocal.exception.MPDConnectionException;
+import org.a0z.mpdlocal.exception.MPDServerException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latest status of the server, kept up to date from idle events.
+ * <p>
+ * Each status read is published as a new immutable {@link MPDStatus} snapshot stamped with an increasing version,
+ * taken when the request is sent. A read answered after a newer one is not published, so the snapshot never goes back
+ * in time when concurrent reads complete out of order. Once the idle connection is in use (see
+ * {@link MPD#waitForChanges()}) or changes watched elsewhere are passed to {@link MPD#changesObserved(List)},
+ * "player", "mixer", "options" and "playlist" events mark the snapshot stale and the
+ * status is only read again then. A snapshot returned by {@link #get(boolean)} is therefore never older than the last
+ * idle response received. Without idle, the status is only read on demand.
+ */
+public class MPDStatusCache {
+
+    static final List<String> STATUS_SUBSYSTEMS = Arrays.asList("player", "mixer", "options", "playlist");
+    static final List<String> STATUS_CHANGES = Arrays.asList("changed: player", "changed: mixer",
+            "changed: options", "changed: playlist");
+
+    private final MPD mpd;
+    private final StatusChangeDispatcher dispatcher = new StatusChangeDispatcher();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong versions = new AtomicLong();
+    private volatile MPDStatus snapshot = new MPDStatus();
+    private volatile boolean monitored = false;
+
+    MPDStatusCache(MPD mpd) {
+        this.mpd = mpd;
+    }
+
+    /**
+     * Retrieves the status, reading it from the server only if it is unknown, stale or <code>forceRefresh</code> is
+     * set.
+     *
+     * @param forceRefresh read the status from the server in any case.
+     * @return the current status snapshot.
+     * @throws MPDServerException if an error occur while contacting server.
+     */
+    public MPDStatus get(boolean forceRefresh) throws MPDServerException {
+        MPDStatus current = snapshot;
+        if (forceRefresh || current.getState() == null || isStale(current)) {
+            return fetch();
+        }
+        return current;
+    }
+
+    /**
+     * Retrieves the dispatcher firing typed events for changes between snapshots.
+     *
+     * @return the dispatcher.
+     */
+    public StatusChangeDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Retrieves the last snapshot without contacting the server, even if it is stale.
+     *
+     * @return the last status snapshot, version 0 if the status was never read.
+     */
+    public MPDStatus peek() {
+        return snapshot;
+    }
+
+    public boolean isStale() {
+        return isStale(snapshot);
+    }
+
+    private boolean isStale(MPDStatus status) {
+        return monitored && status.getEventsSeen() < events.get();
+    }
+
+    /**
+     * Reads the status again if an idle event made it stale. Meant to be called by the idle loop so that
+     * {@link #get(boolean)} stays a memory read.
+     *
+     * @throws MPDServerException if an error occur while contacting server.
+     */
+    public void refreshIfStale() throws MPDServerException {
+        if (isStale()) {
+            fetch();
+        }
+    }
+
+    /*
+     * Called before each idle request, anything that happened before the first one is unknown.
+     */
+    void idleStarted() {
+        if (!monitored) {
+            monitored = true;
+            events.incrementAndGet();
+        }
+    }
+
+    /*
+     * Called with each idle response.
+     */
+    void changed(List<String> changes) {
+        for (String change : changes) {
+            if (STATUS_CHANGES.contains(change)) {
+                events.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private MPDStatus fetch() throws MPDServerException {
+        if (!mpd.isConnected()) {
+            throw new MPDConnectionException("MPD Connection is not established");
+        }
+        Request request = request();
+        List<String> response = mpd.getMpdStatusConnection().sendCommand(MPDCommand.MPD_CMD_STATUS);
+        publish(response, request);
+        // This read or a newer one
+        return snapshot;
+    }
+
+    /*
+     * Taken right before a status request is sent, fixes the version of its result.
+     */
+    Request request() {
+        // Events arriving while the request is in flight keep the result stale
+        long seen = events.get();
+        return new Request(versions.incrementAndGet(), seen);
+    }
+
+    /*
+     * Publishes a status response, also when read by other means, e.g. together with playlist changes. The result is
+     * only installed as snapshot if no newer request was published meanwhile.
+     *
+     * @return the status of this response.
+     */
+    synchronized MPDStatus publish(List<String> response, Request request) {
+        MPDStatus status = new MPDStatus();
+        status.updateStatus(response);
+        status.stamp(request.version, request.eventsSeen, System.nanoTime());
+        if (request.version > snapshot.getVersion()) {
+            snapshot = status;
+            dispatcher.statusPublished(status);
+        }
+        return status;
+    }
+
+    static final class Request {
+        final long version;
+        final long eventsSeen;
+
+        private Request(long version, long eventsSeen) {
+            this.version = version;
+            this.eventsSeen = eventsSeen;
+        }
+    }
+}
@@ -35,6 +35,8 @@ public class Music extends Item implements FilesystemTreeEntry {
 
     private String albumartist = null;
 
+    private String genre = null;
+
     private String fullpath;
 
     private int disc = -1;
@@ -90,6 +92,8 @@ public class Music extends Item implements FilesystemTreeEntry {
                 this.albumartist = line.substring("AlbumArtist: ".length());
             } else if (line.startsWith("Album:")) {
                 this.album = line.substring("Album: ".length());
+            } else if (line.startsWith("Genre:")) {
+                this.genre = line.substring("Genre: ".length());
             } else if (line.startsWith("Title:")) {
                 this.title = line.substring("Title: ".length());
             } else if (line.startsWith("Name:")) {
@@ -254,6 +258,15 @@ public class Music extends Item implements FilesystemTreeEntry {
         return albumartist;
     }
 
+    /**
+     * Retrieves genre name.
+     *
+     * @return genre name or null if it is not set.
+     */
+    public String getGenre() {
+        return genre;
+    }
+
     public static boolean isValidArtist(String artist) {
         return !isEmpty(artist) && !ARTIST_BLACK_LIST.contains(artist.toLowerCase()) && artist.length() < MAX_ARTIST_NAME_LENGTH;
     }
@@ -436,6 +449,15 @@ public class Music extends Item implements FilesystemTreeEntry {
         artist = string;
     }
 
+    /**
+     * Defines genre name.
+     *
+     * @param string genre name.
+     */
+    public void setGenre(String string) {
+        genre = string;
+    }
+
     /**
      * Defines playing time.
      *
@@ -505,8 +527,8 @@ public class Music extends Item implements FilesystemTreeEntry {
         this.setTime(other.getTime());
         this.setTotalTracks(other.getTotalTracks());
         this.setTrack(other.getTrack());
-        /*
         this.setGenre(other.getGenre());
+        /*
 		this.setSoundtrack(other.getSoundtrack());
 		this.setComposer(other.getComposer());
 		*/
@@ -0,0 +1,26 @@
+package org.a0z.mpdlocal;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads with a recognizable name.
+ * <p>
+ * Do not use the default executor thread factory for helpers that talk to MPD: its threads are named "pool-..." and
+ * {@link MPDConnection} runs requests coming from such threads inline instead of on its own connection thread.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    public NamedThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,155 @@
+package org.a0z.mpdlocal;
+
+import java.text.Collator;
+
+/**
+ * Precomputed sort key for natural order comparisons.
+ * <p>
+ * The string is split once into runs of digits and runs of other characters. Digit runs keep their value (digits
+ * without leading zeros), other runs keep the bytes of their collation key. Comparing two keys is then a plain byte
+ * comparison per run, which orders the same way as {@link StringComparators#compareNatural(Collator, String, String)}
+ * without walking the strings and calling the collator on every comparison. Numbers sort before words, as they do with
+ * the collators shipped with the JDK and Android.
+ * <p>
+ * Keys are only comparable with keys built with an equivalent collator.
+ *
+ * @see StringComparators#sortNatural(java.util.List)
+ */
+public final class NaturalSortKey implements Comparable<NaturalSortKey> {
+    private static final byte[][] NO_RUNS = new byte[0][];
+
+    private final String source;
+    private final byte[][] runs;
+    // Bit i set when runs[i] is a number
+    private final long[] numeric;
+    private final int leadingZeros;
+
+    private NaturalSortKey(String source, byte[][] runs, long[] numeric, int leadingZeros) {
+        this.source = source;
+        this.runs = runs;
+        this.numeric = numeric;
+        this.leadingZeros = leadingZeros;
+    }
+
+    /**
+     * Builds the key of <code>s</code>.
+     *
+     * @param s        string to build the key for, null is treated like an empty string.
+     * @param collator used for the non-number runs. Collators are not thread safe, use one per thread.
+     * @return the key.
+     */
+    public static NaturalSortKey of(String s, Collator collator) {
+        if (collator == null) {
+            throw new NullPointerException("collator must not be null");
+        }
+        if (s == null || s.length() == 0) {
+            return new NaturalSortKey(s, NO_RUNS, new long[0], 0);
+        }
+
+        int length = s.length();
+        int count = 0;
+        for (int i = 0; i < length; count++) {
+            boolean digit = Character.isDigit(s.charAt(i));
+            do {
+                i++;
+            } while (i < length && Character.isDigit(s.charAt(i)) == digit);
+        }
+
+        byte[][] runs = new byte[count][];
+        long[] numeric = new long[(count + 63) >>> 6];
+        int leadingZeros = 0;
+        int run = 0;
+        for (int i = 0; i < length; run++) {
+            int start = i;
+            boolean digit = Character.isDigit(s.charAt(i));
+            do {
+                i++;
+            } while (i < length && Character.isDigit(s.charAt(i)) == digit);
+
+            if (digit) {
+                int first = start;
+                while (first < i - 1 && s.charAt(first) == '0') {
+                    first++;
+                }
+                leadingZeros += first - start;
+                byte[] value = new byte[i - first];
+                for (int d = first; d < i; d++) {
+                    value[d - first] = (byte) Character.digit(s.charAt(d), 10);
+                }
+                runs[run] = value;
+                numeric[run >>> 6] |= 1L << run;
+            } else {
+                runs[run] = collator.getCollationKey(s.substring(start, i)).toByteArray();
+            }
+        }
+        return new NaturalSortKey(s, runs, numeric, leadingZeros);
+    }
+
+    /**
+     * Retrieves the string this key was built from.
+     *
+     * @return the source string.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    private boolean isNumeric(int run) {
+        return (numeric[run >>> 6] & (1L << run)) != 0;
+    }
+
+    @Override
+    public int compareTo(NaturalSortKey o) {
+        int count = Math.min(runs.length, o.runs.length);
+        for (int i = 0; i < count; i++) {
+            boolean number = isNumeric(i);
+            if (number != o.isNumeric(i)) {
+                return number ? -1 : 1;
+            }
+            byte[] a = runs[i];
+            byte[] b = o.runs[i];
+            if (number && a.length != b.length) {
+                return a.length < b.length ? -1 : 1;
+            }
+            int diff = compareBytes(a, b);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        if (runs.length != o.runs.length) {
+            return runs.length < o.runs.length ? -1 : 1;
+        }
+        return leadingZeros - o.leadingZeros;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int count = Math.min(a.length, b.length);
+        for (int i = 0; i < count; i++) {
+            if (a[i] != b[i]) {
+                return (a[i] & 0xff) - (b[i] & 0xff);
+            }
+        }
+        return a.length - b.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return (o instanceof NaturalSortKey) && compareTo((NaturalSortKey) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = leadingZeros;
+        for (byte[] run : runs) {
+            for (byte b : run) {
+                hash = 31 * hash + b;
+            }
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
@@ -0,0 +1,322 @@
+package org.a0z.mpdlocal;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sorting helpers for large library listings.
+ * <p>
+ * Lists shorter than {@link #PARALLEL_THRESHOLD}, or any list on a single core device, are sorted on the calling
+ * thread. Longer lists are cut into one slice per core. The calling thread and a pool sized to the spare cores sort the
+ * slices, computing sort keys for their slice first, and the sorted slices are then combined with a k-way merge. All
+ * sorts are stable.
+ */
+public final class ParallelSort {
+
+    /**
+     * Minimum list size for which the work is spread over several cores.
+     */
+    public static final int PARALLEL_THRESHOLD = 20000;
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService executor;
+
+    /**
+     * This is a utility class (static methods only), don't instantiate.
+     */
+    private ParallelSort() {
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(CORES - 1, new NamedThreadFactory("parallel-sort"));
+        }
+        return executor;
+    }
+
+    private static int slicesFor(int size) {
+        return size < PARALLEL_THRESHOLD || CORES < 2 ? 1 : CORES;
+    }
+
+    /**
+     * Sorts <code>list</code> with <code>comparator</code>.
+     *
+     * @param list       list to sort in place.
+     * @param comparator comparator to sort with.
+     */
+    public static <T> void sort(List<T> list, final Comparator<? super T> comparator) {
+        int slices = slicesFor(list.size());
+        if (slices < 2) {
+            Collections.sort(list, comparator);
+            return;
+        }
+
+        @SuppressWarnings("unchecked")
+        final T[] items = (T[]) list.toArray();
+        List<List<T>> sorted = runSlices(items.length, slices, new SliceSorter<T>() {
+            @Override
+            public List<T> sort(int from, int to) {
+                Arrays.sort(items, from, to, comparator);
+                return Arrays.asList(items).subList(from, to);
+            }
+        });
+        if (sorted == null) {
+            Collections.sort(list, comparator);
+        } else {
+            writeBack(list, merge(sorted, comparator));
+        }
+    }
+
+    /**
+     * Sorts strings ignoring case, in the same order as <code>String.CASE_INSENSITIVE_ORDER</code>. Each string is
+     * case folded once instead of on every comparison.
+     *
+     * @param list list to sort in place.
+     */
+    public static void sortIgnoreCase(List<String> list) {
+        int slices = slicesFor(list.size());
+        if (slices < 2) {
+            Collections.sort(list, String.CASE_INSENSITIVE_ORDER);
+            return;
+        }
+
+        final String[] items = list.toArray(new String[list.size()]);
+        List<List<FoldedString>> sorted = runSlices(items.length, slices, new SliceSorter<FoldedString>() {
+            @Override
+            public List<FoldedString> sort(int from, int to) {
+                FoldedString[] keys = new FoldedString[to - from];
+                for (int i = from; i < to; i++) {
+                    keys[i - from] = new FoldedString(items[i]);
+                }
+                Arrays.sort(keys);
+                return Arrays.asList(keys);
+            }
+        });
+        if (sorted == null) {
+            Collections.sort(list, String.CASE_INSENSITIVE_ORDER);
+            return;
+        }
+
+        ListIterator<String> out = list.listIterator();
+        for (Iterator<FoldedString> it = merge(sorted, null); it.hasNext(); ) {
+            out.next();
+            out.set(it.next().source);
+        }
+    }
+
+    /**
+     * Sorts strings in natural order with precomputed {@link NaturalSortKey}s, see
+     * {@link StringComparators#sortNatural(List, Collator)}.
+     *
+     * @param list     list to sort in place.
+     * @param collator collator for the text parts, each slice works on its own copy.
+     */
+    public static void sortNatural(List<String> list, final Collator collator) {
+        int slices = slicesFor(list.size());
+        if (slices < 2) {
+            StringComparators.sortNatural(list, collator);
+            return;
+        }
+
+        final String[] items = list.toArray(new String[list.size()]);
+        List<List<NaturalSortKey>> sorted = runSlices(items.length, slices, new SliceSorter<NaturalSortKey>() {
+            @Override
+            public List<NaturalSortKey> sort(int from, int to) {
+                Collator own = (Collator) collator.clone();
+                NaturalSortKey[] keys = new NaturalSortKey[to - from];
+                for (int i = from; i < to; i++) {
+                    keys[i - from] = NaturalSortKey.of(items[i], own);
+                }
+                Arrays.sort(keys);
+                return Arrays.asList(keys);
+            }
+        });
+        if (sorted == null) {
+            StringComparators.sortNatural(list, collator);
+            return;
+        }
+
+        ListIterator<String> out = list.listIterator();
+        for (Iterator<NaturalSortKey> it = merge(sorted, null); it.hasNext(); ) {
+            out.next();
+            out.set(it.next().getSource());
+        }
+    }
+
+    /**
+     * Merges lists that are each sorted with <code>comparator</code> into one sorted sequence, lazily. Equal elements
+     * come out in the order of the lists they belong to.
+     *
+     * @param sortedLists lists to merge.
+     * @param comparator  order of the lists, null for their natural order.
+     * @return an iterator over the merged elements.
+     */
+    public static <T> MergeIterator<T> merge(List<? extends List<? extends T>> sortedLists,
+                                             Comparator<? super T> comparator) {
+        return new MergeIterator<T>(sortedLists, comparator);
+    }
+
+    /**
+     * Streaming k-way merge over sorted lists, see {@link ParallelSort#merge(List, Comparator)}.
+     */
+    public static final class MergeIterator<T> implements Iterator<T> {
+        private final PriorityQueue<Cursor> heads;
+        private int lastSource = -1;
+
+        private MergeIterator(List<? extends List<? extends T>> lists, final Comparator<? super T> comparator) {
+            this.heads = new PriorityQueue<Cursor>(Math.max(1, lists.size()), new Comparator<Cursor>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public int compare(Cursor a, Cursor b) {
+                    int result = comparator == null
+                            ? ((Comparable<Object>) a.head).compareTo(b.head)
+                            : comparator.compare(a.head, b.head);
+                    return result != 0 ? result : a.source - b.source;
+                }
+            });
+            for (int i = 0; i < lists.size(); i++) {
+                if (!lists.get(i).isEmpty()) {
+                    heads.add(new Cursor(i, lists.get(i).iterator()));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            Cursor cursor = heads.poll();
+            if (cursor == null) {
+                throw new NoSuchElementException();
+            }
+            T result = cursor.head;
+            lastSource = cursor.source;
+            if (cursor.advance()) {
+                heads.add(cursor);
+            }
+            return result;
+        }
+
+        /**
+         * Retrieves the index of the list the last element returned by {@link #next()} came from.
+         *
+         * @return index in the merged lists.
+         */
+        public int lastSource() {
+            return lastSource;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private final class Cursor {
+            final int source;
+            final Iterator<? extends T> rest;
+            T head;
+
+            Cursor(int source, Iterator<? extends T> rest) {
+                this.source = source;
+                this.rest = rest;
+                advance();
+            }
+
+            boolean advance() {
+                if (!rest.hasNext()) {
+                    return false;
+                }
+                head = rest.next();
+                return true;
+            }
+        }
+    }
+
+    private interface SliceSorter<K> {
+        List<K> sort(int from, int to);
+    }
+
+    /*
+     * Sorts the slices, the first one on the calling thread. Returns null if the work could not be completed, the
+     * caller then falls back to a sequential sort.
+     */
+    private static <K> List<List<K>> runSlices(int size, int slices, final SliceSorter<K> sorter) {
+        List<Future<List<K>>> futures = new ArrayList<Future<List<K>>>(slices - 1);
+        int step = (size + slices - 1) / slices;
+        ExecutorService pool = getExecutor();
+        for (int s = 1; s < slices; s++) {
+            final int from = Math.min(size, s * step);
+            final int to = Math.min(size, from + step);
+            futures.add(pool.submit(new Callable<List<K>>() {
+                @Override
+                public List<K> call() {
+                    return sorter.sort(from, to);
+                }
+            }));
+        }
+
+        List<List<K>> result = new ArrayList<List<K>>(slices);
+        result.add(sorter.sort(0, Math.min(size, step)));
+        try {
+            for (Future<List<K>> future : futures) {
+                result.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            return null;
+        }
+        return result;
+    }
+
+    private static <T> void writeBack(List<T> list, Iterator<T> sorted) {
+        ListIterator<T> out = list.listIterator();
+        while (sorted.hasNext()) {
+            out.next();
+            out.set(sorted.next());
+        }
+    }
+
+    /*
+     * String with a precomputed case folded form ordering like String.CASE_INSENSITIVE_ORDER.
+     */
+    private static final class FoldedString implements Comparable<FoldedString> {
+        final String source;
+        final String folded;
+
+        FoldedString(String source) {
+            this.source = source;
+            char[] chars = source.toCharArray();
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+            }
+            this.folded = new String(chars);
+        }
+
+        @Override
+        public int compareTo(FoldedString o) {
+            return folded.compareTo(o.folded);
+        }
+    }
+}
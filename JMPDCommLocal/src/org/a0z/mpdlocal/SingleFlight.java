@@ -0,0 +1,94 @@
+package org.a0z.mpdlocal;
+
+import org.a0z.mpdlocal.exception.MPDConnectionException;
+import org.a0z.mpdlocal.exception.MPDServerException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Lets identical read-only requests in flight at the same time share one round trip.
+ * <p>
+ * The first caller for a key sends the request, later callers wait for it and get their own copy of the lines, but
+ * only until the request starts being written to the server. A caller arriving after that may have changed the server
+ * state since, e.g. with its own <code>setvol</code>, so it sends the request again. An answer is therefore never older
+ * than the commands its caller completed before asking. A request may give up sharing its answer by returning null,
+ * the waiting callers then get null as well and send it themselves.
+ */
+class SingleFlight {
+
+    interface Request {
+        /**
+         * Sends the request.
+         *
+         * @param writing to run right before the request is written to the server, each time it is.
+         * @return the response, or null to not share it.
+         */
+        List<String> send(Runnable writing) throws MPDServerException;
+    }
+
+    private final ConcurrentMap<String, Call> calls = new ConcurrentHashMap<String, Call>();
+
+    List<String> execute(String key, Request request) throws MPDServerException {
+        final Call call = new Call();
+        while (true) {
+            Call existing = calls.putIfAbsent(key, call);
+            if (existing == null) {
+                break;
+            }
+            // Written after this check, so after anything this caller did before
+            if (!existing.written) {
+                return existing.await();
+            }
+            // Already on its way, its callers keep it, new ones wait for this call
+            if (calls.replace(key, existing, call)) {
+                break;
+            }
+        }
+        try {
+            call.result = request.send(new Runnable() {
+                @Override
+                public void run() {
+                    call.written = true;
+                }
+            });
+            // Callers may modify what they get, the waiting ones copy the original
+            return call.result == null ? null : new ArrayList<String>(call.result);
+        } catch (MPDServerException e) {
+            call.failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            call.failure = new MPDServerException(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+            call.done.countDown();
+        }
+    }
+
+    private static class Call {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean written = false;
+        volatile List<String> result;
+        volatile MPDServerException failure;
+
+        List<String> await() throws MPDServerException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MPDServerException("Interrupted while waiting for a shared request", e);
+            }
+            if (failure instanceof MPDConnectionException) {
+                // Callers tell a lost connection from a rejected command
+                throw new MPDConnectionException(failure.getMessage(), failure);
+            } else if (failure != null) {
+                throw new MPDServerException(failure.getMessage(), failure);
+            }
+            return result == null ? null : new ArrayList<String>(result);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.a0z.mpdlocal;
+
+import org.a0z.mpdlocal.event.StatusChangeListener;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fires {@link StatusChangeListener} callbacks from consecutive status snapshots.
+ * <p>
+ * Each snapshot published by {@link MPDStatusCache} is compared with the previous one and only the callbacks for the
+ * fields that differ are called. Listeners run on a dedicated thread, in publication order, so a slow listener delays
+ * later events but never the idle loop or the thread that read the status.
+ */
+public class StatusChangeDispatcher {
+
+    private final List<StatusChangeListener> listeners = new CopyOnWriteArrayList<StatusChangeListener>();
+    private ExecutorService executor;
+    // Set between disconnect and the next connect, events are dropped meanwhile
+    private boolean stopped = false;
+
+    // Last snapshot seen, only touched from the dispatch thread once listeners exist
+    private MPDStatus last;
+
+    public void addListener(StatusChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(StatusChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private synchronized void execute(Runnable task) {
+        if (stopped) {
+            return;
+        }
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("status-events"));
+        }
+        executor.execute(task);
+    }
+
+    /*
+     * Called on connect, see shutdown().
+     */
+    synchronized void start() {
+        stopped = false;
+    }
+
+    /*
+     * Stops the dispatch thread once the events queued so far were fired, called on disconnect. Events published until
+     * the next connect are dropped, so a late status read doesn't start the thread again.
+     */
+    synchronized void shutdown() {
+        stopped = true;
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /*
+     * Called by MPDStatusCache in publication order.
+     */
+    synchronized void statusPublished(final MPDStatus status) {
+        if (listeners.isEmpty() && executor == null) {
+            last = status;
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                MPDStatus previous = last;
+                last = status;
+                if (previous != null && previous.getState() != null) {
+                    fireChanges(previous, status);
+                }
+            }
+        });
+    }
+
+    void connectionStateChanged(final boolean connected, final boolean connectionLost) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (StatusChangeListener listener : listeners) {
+                    try {
+                        listener.connectionStateChanged(connected, connectionLost);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    private void fireChanges(MPDStatus previous, MPDStatus status) {
+        boolean volume = previous.getVolume() != status.getVolume();
+        boolean playlist = previous.getPlaylistVersion() != status.getPlaylistVersion();
+        boolean track = previous.getSongId() != status.getSongId() || previous.getSongPos() != status.getSongPos();
+        boolean state = !equal(previous.getState(), status.getState());
+        boolean repeat = previous.isRepeat() != status.isRepeat();
+        boolean random = previous.isRandom() != status.isRandom();
+        boolean updating = previous.isUpdating() != status.isUpdating();
+        if (!(volume || playlist || track || state || repeat || random || updating)) {
+            return;
+        }
+
+        for (StatusChangeListener listener : listeners) {
+            try {
+                if (volume)
+                    listener.volumeChanged(status, previous.getVolume());
+                if (playlist)
+                    listener.playlistChanged(status, previous.getPlaylistVersion());
+                if (track)
+                    listener.trackChanged(status, previous.getSongPos());
+                if (state)
+                    listener.stateChanged(status, previous.getState());
+                if (repeat)
+                    listener.repeatChanged(status.isRepeat());
+                if (random)
+                    listener.randomChanged(status.isRandom());
+                if (updating)
+                    listener.libraryStateChanged(status.isUpdating());
+            } catch (RuntimeException e) {
+                // One broken listener must not starve the others
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -24,7 +24,9 @@
 package org.a0z.mpdlocal;
 
 import java.text.Collator;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * Utility class for common String operations
@@ -179,6 +181,81 @@ public final class StringComparators {
         return compareNatural(s, t, false, null);
     }
 
+    /**
+     * <p>Sorts <code>list</code> in natural order using the current locale's rules, like
+     * {@link #getNaturalComparator()} would.</p>
+     * <p>Each string's {@link NaturalSortKey} is computed once up front, so large lists don't repeat the collation
+     * work on every comparison.</p>
+     *
+     * @param list list to sort in place
+     */
+    public static void sortNatural(List<String> list) {
+        sortNatural(list, Collator.getInstance());
+    }
+
+    /**
+     * <p>Sorts <code>list</code> in natural order using the given collator, like
+     * {@link #getNaturalComparator(java.text.Collator)} would, with keys computed once per string.</p>
+     *
+     * @param list     list to sort in place
+     * @param collator used for locale specific comparison of text (non-number) subwords - must not be null
+     */
+    public static void sortNatural(List<String> list, Collator collator) {
+        NaturalSortKey[] keys = new NaturalSortKey[list.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = NaturalSortKey.of(list.get(i), collator);
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < keys.length; i++) {
+            list.set(i, keys[i].getSource());
+        }
+    }
+
+    /**
+     * <p>Sorts items in natural order of their {@link Item#sort()} string using the current locale's rules, with keys
+     * computed once per item.</p>
+     *
+     * @param items list to sort in place
+     */
+    public static <T extends Item> void sortNaturalItems(List<T> items) {
+        sortNaturalItems(items, Collator.getInstance());
+    }
+
+    /**
+     * <p>Sorts items in natural order of their {@link Item#sort()} string using the given collator, with keys computed
+     * once per item. The sort is stable.</p>
+     *
+     * @param items    list to sort in place
+     * @param collator used for locale specific comparison of text (non-number) subwords - must not be null
+     */
+    public static <T extends Item> void sortNaturalItems(List<T> items, Collator collator) {
+        KeyedItem[] keyed = new KeyedItem[items.size()];
+        for (int i = 0; i < keyed.length; i++) {
+            T item = items.get(i);
+            keyed[i] = new KeyedItem(NaturalSortKey.of(item.sort(), collator), item);
+        }
+        Arrays.sort(keyed);
+        for (int i = 0; i < keyed.length; i++) {
+            @SuppressWarnings("unchecked")
+            T item = (T) keyed[i].item;
+            items.set(i, item);
+        }
+    }
+
+    private static final class KeyedItem implements Comparable<KeyedItem> {
+        final NaturalSortKey key;
+        final Item item;
+
+        KeyedItem(NaturalSortKey key, Item item) {
+            this.key = key;
+            this.item = item;
+        }
+
+        public int compareTo(KeyedItem o) {
+            return key.compareTo(o.key);
+        }
+    }
+
     /**
      * @param s             first string
      * @param t             second string
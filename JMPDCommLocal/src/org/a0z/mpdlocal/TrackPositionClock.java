@@ -0,0 +1,98 @@
+package org.a0z.mpdlocal;
+
+import org.a0z.mpdlocal.event.TrackPositionListener;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local clock for the position in the current track.
+ * <p>
+ * The position is extrapolated from the last status snapshot: its elapsed time plus the monotonic time since it was
+ * read while playing, capped at the track length. The clock never contacts the server, it resynchronizes whenever
+ * {@link MPDStatusCache} publishes a new snapshot, which it does on player events. Listeners are called every period
+ * while playing, and once more after each new snapshot so pauses and seeks are reported too.
+ */
+public class TrackPositionClock {
+
+    public static final long DEFAULT_PERIOD_MS = 1000;
+
+    private final MPDStatusCache statusCache;
+    private final long periodMs;
+    private final List<TrackPositionListener> listeners = new CopyOnWriteArrayList<TrackPositionListener>();
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("track-position"));
+
+    // Version of the last snapshot ticked, only touched from the executor thread
+    private long lastVersion = -1;
+
+    public TrackPositionClock(MPDStatusCache statusCache) {
+        this(statusCache, DEFAULT_PERIOD_MS);
+    }
+
+    public TrackPositionClock(MPDStatusCache statusCache, long periodMs) {
+        this.statusCache = statusCache;
+        this.periodMs = periodMs;
+    }
+
+    public void addTrackPositionListener(TrackPositionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeTrackPositionListener(TrackPositionListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void start() {
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, 0, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Retrieves the current status with the elapsed time extrapolated to now.
+     *
+     * @return status snapshot, or a copy of it with the elapsed time moved forward while playing.
+     */
+    public MPDStatus now() {
+        return extrapolate(statusCache.peek(), System.nanoTime());
+    }
+
+    static MPDStatus extrapolate(MPDStatus status, long nanoTime) {
+        if (!MPDStatus.MPD_STATE_PLAYING.equals(status.getState())) {
+            return status;
+        }
+        long elapsed = status.getElapsedMillis() + TimeUnit.NANOSECONDS.toMillis(nanoTime - status.getTimestamp());
+        if (status.getTotalTime() > 0) {
+            elapsed = Math.min(elapsed, status.getTotalTime() * 1000);
+        }
+        return status.withElapsedMillis(elapsed);
+    }
+
+    private void tick() {
+        MPDStatus status = statusCache.peek();
+        boolean resynchronized = status.getVersion() != lastVersion;
+        lastVersion = status.getVersion();
+        if (status.getState() == null || !(resynchronized || MPDStatus.MPD_STATE_PLAYING.equals(status.getState()))) {
+            return;
+        }
+        MPDStatus position = extrapolate(status, System.nanoTime());
+        for (TrackPositionListener listener : listeners) {
+            try {
+                listener.trackPositionChanged(position);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
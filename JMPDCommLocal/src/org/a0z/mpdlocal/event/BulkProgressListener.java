@@ -0,0 +1,16 @@
+package org.a0z.mpdlocal.event;
+
+/**
+ * Progress of a bulk operation sent to the server in several command lists.
+ */
+public interface BulkProgressListener {
+	/**
+	 * Called each time the server acknowledged a command list.
+	 *
+	 * @param done
+	 *           number of commands processed so far.
+	 * @param total
+	 *           number of commands in the operation.
+	 */
+	void bulkProgress(int done, int total);
+}
@@ -0,0 +1,14 @@
+package org.a0z.mpdlocal.event;
+
+/**
+ * Receives the lines of a response as they are read from the server.
+ */
+public interface ResponseLineListener {
+	/**
+	 * Called for each line of the response, terminating OK excluded.
+	 *
+	 * @param line
+	 *           line as sent by the server.
+	 */
+	void lineReceived(String line);
+}
@@ -2,6 +2,7 @@ package com.facetoe.bluetoothserver;
 
 
 import org.a0z.mpdlocal.AbstractCommand;
+import org.a0z.mpdlocal.MPDCommand;
 
 import java.util.Arrays;
 import java.util.List;
@@ -99,10 +100,20 @@ public class BTServerCommand extends AbstractCommand {
     public static final String MPD_TAG_GENRE = "genre";
 
     public static final String SERVER_CAN_PROCEED = "canProceed";
+    public static final String SERVER_INCREMENTAL_SEARCH = "incrementalSearch";
+    public static final String SERVER_REORDER_PLAYLIST = "reorderPlaylist";
+    public static final String SERVER_BATCH = "batch";
+    public static final String SERVER_PASSTHROUGH = "passthrough";
+    public static final String SERVER_RESUME = "resume";
 
 
     protected static List<String> BULK_COMMANDS = Arrays.asList(MPD_CMD_START_BULK, MPD_CMD_START_BULK_OK, MPD_CMD_BULK_SEP, MPD_CMD_END_BULK);
 
+    // Set by clients that match responses by id, 0 when not set
+    private int requestId;
+    // Commands of a batch, null for other commands
+    private BTServerCommand[] commands;
+
     public BTServerCommand(String _command, String... _args) {
         super(_command, _args);
     }
@@ -112,6 +123,32 @@ public class BTServerCommand extends AbstractCommand {
         synchronous = isSynchronous;
     }
 
+    public int getRequestId() {
+        return requestId;
+    }
+
+    void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
+    void setCommands(BTServerCommand[] commands) {
+        this.commands = commands;
+    }
+
+    public BTServerCommand[] getCommands() {
+        return commands == null ? new BTServerCommand[0] : commands;
+    }
+
+    /**
+     * Whether a command only reads, it can then run concurrently with other reads and with what follows it.
+     *
+     * @param command MPD command name.
+     * @return true for the commands of {@link MPDCommand#READ_ONLY_COMMANDS}.
+     */
+    public static boolean isReadOnlyCommand(String command) {
+        return MPDCommand.isReadOnly(command);
+    }
+
     public static boolean isBulkCommand(String command) {
         return BULK_COMMANDS.contains(command);
     }
@@ -0,0 +1,195 @@
+package com.facetoe.bluetoothserver;
+
+import org.a0z.mpdlocal.MPD;
+import org.a0z.mpdlocal.MPDRawChangeMonitor;
+import org.a0z.mpdlocal.exception.MPDServerException;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Recent idle events of one MPD server, numbered so that a reconnecting client can catch up.
+ * <p>
+ * The journal watches the server on its own connection, so it keeps recording while no client is connected. Each
+ * event gets the next sequence number and the playlist version at that time, and the last {@link #CAPACITY} events are
+ * kept. Clients learn the sequence number of each event as it is sent to them and, after reconnecting, ask for what
+ * they missed with {@link #since(long, long)}. The epoch changes with every journal, i.e. every server start, so stale
+ * sequence numbers are recognized. The last sequence number sent to each Bluetooth device is remembered as well, for
+ * clients that don't keep it.
+ */
+public class EventJournal implements MPDRawChangeMonitor.MPDRawChangeListener {
+
+    public static final int CAPACITY = 512;
+
+    public interface JournalListener {
+        void eventJournaled(long sequence, List<String> changes);
+    }
+
+    private static final Map<String, EventJournal> JOURNALS = new HashMap<String, EventJournal>();
+
+    private final long epoch = new Random().nextLong() & Long.MAX_VALUE;
+    private final MPD mpd = new MPD();
+    private final List<JournalListener> listeners = new CopyOnWriteArrayList<JournalListener>();
+    private final Map<String, Long> deviceSequences = new HashMap<String, Long>();
+
+    // Ring buffer, guarded by this
+    private final Entry[] entries = new Entry[CAPACITY];
+    private long sequence = 0;
+
+    private EventJournal() {
+    }
+
+    /**
+     * Retrieves the journal of a server, starting it on first use.
+     *
+     * @throws MPDServerException   if the server can't be reached.
+     * @throws UnknownHostException if the host can't be resolved.
+     */
+    public static synchronized EventJournal forServer(String host, int port, String password)
+            throws MPDServerException, UnknownHostException {
+        String key = host + ":" + port + ":" + password;
+        EventJournal journal = JOURNALS.get(key);
+        if (journal == null) {
+            journal = new EventJournal();
+            journal.mpd.connect(host, port, password);
+            MPDRawChangeMonitor monitor = new MPDRawChangeMonitor(journal.mpd, 1000);
+            monitor.addMPDRawChangeListener(journal);
+            monitor.setDaemon(true);
+            monitor.start();
+            JOURNALS.put(key, journal);
+        }
+        return journal;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void addJournalListener(JournalListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeJournalListener(JournalListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void updateChanges(List<String> changes) {
+        long journaled;
+        synchronized (this) {
+            journaled = ++sequence;
+            entries[(int) (journaled % CAPACITY)] = new Entry(journaled, changes,
+                    mpd.getStatusCache().peek().getPlaylistVersion());
+        }
+        for (JournalListener listener : listeners) {
+            listener.eventJournaled(journaled, changes);
+        }
+    }
+
+    @Override
+    public void notifyError(Exception e) {
+        // The monitor retries with a back-off, events in between are lost and resuming clients resynchronize
+        System.err.println("Event journal lost the server: " + e.getMessage());
+        synchronized (this) {
+            sequence += CAPACITY;
+        }
+    }
+
+    /**
+     * Records the last sequence number sent to a device.
+     */
+    public synchronized void sent(String device, long sequence) {
+        if (device != null) {
+            deviceSequences.put(device, sequence);
+        }
+    }
+
+    /**
+     * Retrieves the last sequence number sent to a device.
+     *
+     * @return the sequence number, 0 if nothing was sent to the device by this journal.
+     */
+    public synchronized long lastSent(String device) {
+        Long last = device == null ? null : deviceSequences.get(device);
+        return last == null ? 0 : last;
+    }
+
+    /**
+     * Retrieves what changed after the event <code>since</code>.
+     *
+     * @param epoch epoch the client got along with <code>since</code>.
+     * @param since last sequence number the client saw.
+     * @return the changes, or a result asking for a full resynchronization if the epoch changed or the events were
+     * already dropped.
+     */
+    public synchronized Resume since(long epoch, long since) {
+        long oldest = Math.max(1, sequence - CAPACITY + 1);
+        if (epoch != this.epoch || since > sequence || since < oldest - 1 || since <= 0) {
+            return new Resume(sequence, null, -1);
+        }
+        Set<String> changes = new LinkedHashSet<String>();
+        for (long s = since + 1; s <= sequence; s++) {
+            Entry entry = entries[(int) (s % CAPACITY)];
+            if (entry == null || entry.sequence != s) {
+                return new Resume(sequence, null, -1);
+            }
+            changes.addAll(entry.changes);
+        }
+        Entry last = entries[(int) (since % CAPACITY)];
+        int playlistVersion = last != null && last.sequence == since ? last.playlistVersion : -1;
+        return new Resume(sequence, new ArrayList<String>(changes), playlistVersion);
+    }
+
+    public static class Resume {
+        private final long sequence;
+        private final List<String> changes;
+        private final int playlistVersion;
+
+        Resume(long sequence, List<String> changes, int playlistVersion) {
+            this.sequence = sequence;
+            this.changes = changes;
+            this.playlistVersion = playlistVersion;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the distinct changes missed, null if the client has to reload everything.
+         */
+        public List<String> getChanges() {
+            return changes;
+        }
+
+        public boolean isFullResync() {
+            return changes == null;
+        }
+
+        /**
+         * @return the playlist version at the client's last event, for <code>plchanges</code>, -1 if unknown.
+         */
+        public int getPlaylistVersion() {
+            return playlistVersion;
+        }
+    }
+
+    private static class Entry {
+        final long sequence;
+        final List<String> changes;
+        final int playlistVersion;
+
+        Entry(long sequence, List<String> changes, int playlistVersion) {
+            this.sequence = sequence;
+            this.changes = changes;
+            this.playlistVersion = playlistVersion;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.facetoe.bluetoothserver;
+
+import org.a0z.mpdlocal.LibraryIndex;
+import org.a0z.mpdlocal.MPD;
+import org.a0z.mpdlocal.Music;
+import org.a0z.mpdlocal.NamedThreadFactory;
+import org.a0z.mpdlocal.exception.MPDServerException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Search-as-you-type for one Bluetooth session.
+ *
+ * Each keystroke supersedes the previous query: queries are debounced, anything still pending or running for an
+ * older query is dropped, and when the new text only extends the previous one the previous result set is narrowed
+ * down instead of querying the whole library again. The first page of results is reported before the rest.
+ */
+public class IncrementalSearch {
+
+    public interface SearchListener {
+        void searchResults(String query, int offset, List<Music> songs, boolean complete);
+
+        void searchFailed(String query, Exception e);
+    }
+
+    public static final int DEFAULT_LIMIT = 500;
+    private static final int FIRST_PAGE_SIZE = 50;
+    private static final long DEBOUNCE_MS = 150;
+
+    private final MPD mpd;
+    private final SearchListener listener;
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("incremental-search"));
+    private final AtomicInteger generation = new AtomicInteger();
+    private ScheduledFuture<?> pending;
+
+    // Last completed query, only touched from the executor thread
+    private LibraryIndex lastIndex;
+    private String lastType;
+    private String lastQuery;
+    // Every match of lastQuery, not only the reported ones
+    private List<Music> lastResult;
+
+    public IncrementalSearch(MPD mpd, SearchListener listener) {
+        this.mpd = mpd;
+        this.listener = listener;
+    }
+
+    /**
+     * Schedules a query, cancelling any query submitted before it.
+     *
+     * @param type  tag to search, see {@link LibraryIndex#query(String, String, boolean, int)}.
+     * @param query text typed so far.
+     * @param limit maximum number of results to report.
+     */
+    public synchronized void submit(final String type, final String query, final int limit) {
+        final int current = generation.incrementAndGet();
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        pending = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runQuery(current, type, query, limit);
+                } catch (MPDServerException e) {
+                    if (!isSuperseded(current)) {
+                        listener.searchFailed(query, e);
+                    }
+                } catch (RuntimeException e) {
+                    // Thrown out of the runnable it would be kept in the future, unseen
+                    e.printStackTrace();
+                    if (!isSuperseded(current)) {
+                        listener.searchFailed(query, e);
+                    }
+                }
+            }
+        }, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        generation.incrementAndGet();
+        executor.shutdownNow();
+    }
+
+    private boolean isSuperseded(int current) {
+        return generation.get() != current;
+    }
+
+    private void runQuery(int current, String type, String query, int limit) throws MPDServerException {
+        LibraryIndex index = mpd.getLibraryIndex();
+        if (index == null) {
+            index = mpd.refreshLibraryIndex();
+        }
+        if (isSuperseded(current)) {
+            return;
+        }
+
+        List<Music> result;
+        boolean firstPageSent = false;
+        if (isRefinement(index, type, query)) {
+            // Refinement of the previous query, every match is already in the previous result
+            result = new ArrayList<Music>();
+            for (Music music : lastResult) {
+                if (index.matches(music, type, query, true)) {
+                    result.add(music);
+                    if (result.size() == FIRST_PAGE_SIZE && limit > FIRST_PAGE_SIZE) {
+                        listener.searchResults(query, 0, new ArrayList<Music>(result), false);
+                        firstPageSent = true;
+                    }
+                }
+                if (isSuperseded(current)) {
+                    return;
+                }
+            }
+        } else {
+            List<Music> firstPage = index.query(type, query, true, Math.min(FIRST_PAGE_SIZE, limit));
+            if (firstPage.size() < FIRST_PAGE_SIZE || limit <= FIRST_PAGE_SIZE) {
+                result = index.query(type, query, true, Integer.MAX_VALUE);
+            } else {
+                listener.searchResults(query, 0, firstPage, false);
+                firstPageSent = true;
+                if (isSuperseded(current)) {
+                    return;
+                }
+                result = index.query(type, query, true, Integer.MAX_VALUE);
+            }
+        }
+
+        lastIndex = index;
+        lastType = type;
+        lastQuery = query;
+        lastResult = result;
+
+        if (isSuperseded(current)) {
+            return;
+        }
+        int offset = firstPageSent ? FIRST_PAGE_SIZE : 0;
+        int end = Math.min(result.size(), limit);
+        List<Music> remainder = offset < end ? result.subList(offset, end) : new ArrayList<Music>();
+        listener.searchResults(query, offset, new ArrayList<Music>(remainder), true);
+    }
+
+    /*
+     * Every match of the query is in the previous result if the query only extends it, the previous result is never
+     * cut at the limit. A query without words matches nothing, so its empty result can't be narrowed down.
+     */
+    private boolean isRefinement(LibraryIndex index, String type, String query) {
+        return index == lastIndex && type.equals(lastType) && hasWords(lastQuery)
+                && query.startsWith(lastQuery);
+    }
+
+    private static boolean hasWords(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.isLetterOrDigit(text.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Converts songs back to MPD response lines so clients can reuse their MPD response parser.
+     *
+     * @param songs songs to convert.
+     * @return MPD style lines for the songs.
+     */
+    public static List<String> toResponseLines(List<Music> songs) {
+        List<String> lines = new ArrayList<String>(songs.size() * 6);
+        for (Music music : songs) {
+            lines.add("file: " + music.getFullpath());
+            addLine(lines, "Artist: ", music.getArtist());
+            addLine(lines, "AlbumArtist: ", music.getAlbumArtist());
+            addLine(lines, "Album: ", music.getAlbum());
+            if (music.haveTitle()) {
+                lines.add("Title: " + music.getTitle());
+            }
+            addLine(lines, "Genre: ", music.getGenre());
+            if (music.getTrack() > -1) {
+                lines.add("Track: " + music.getTrack());
+            }
+            if (music.getDisc() > -1) {
+                lines.add("Disc: " + music.getDisc());
+            }
+            if (music.getDate() > -1) {
+                lines.add("Date: " + music.getDate());
+            }
+            if (music.getTime() > -1) {
+                lines.add("Time: " + music.getTime());
+            }
+        }
+        return lines;
+    }
+
+    private static void addLine(List<String> lines, String key, String value) {
+        if (value != null) {
+            lines.add(key + value);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.facetoe.bluetoothserver;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JSON encoding of the Bluetooth protocol.
+ * <p>
+ * Commands are read with a streaming type adapter and responses written field by field, both bound directly to the
+ * connection streams, one JSON object per line, instead of going through an intermediate String and reflection for
+ * every message. The wire format is unchanged.
+ */
+public class JsonProtocol {
+
+    private static final TypeAdapter<BTServerCommand> COMMAND_ADAPTER = new CommandAdapter();
+
+    /**
+     * Gson shared by the whole server, it is thread safe.
+     */
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(BTServerCommand.class, COMMAND_ADAPTER)
+            .create();
+
+    private JsonProtocol() {
+    }
+
+    /**
+     * Reads the next command from a lenient reader, blank lines between commands are skipped.
+     *
+     * @param in reader bound to the client's input stream.
+     * @return the next command, or null once the client closed the connection.
+     * @throws IOException if the stream can't be read or holds malformed JSON.
+     */
+    public static BTServerCommand readCommand(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.END_DOCUMENT) {
+            return null;
+        }
+        return COMMAND_ADAPTER.read(in);
+    }
+
+    /**
+     * Writes a response with the same fields, in the same order, as Gson's reflective encoding did. The writer does
+     * not separate top-level values, callers write the line terminator.
+     *
+     * @param out      lenient writer bound to the client's output stream.
+     * @param response response to write.
+     * @throws IOException if the stream can't be written.
+     */
+    public static void writeResponse(JsonWriter out, MPDResponse response) throws IOException {
+        out.beginObject();
+        out.name("responseType").value(response.getResponseType());
+        out.name("numObjects").value(response.getNumObjects());
+        out.name("objectJSON").beginArray();
+        for (int i = 0; i < response.getNumObjects(); i++) {
+            out.value(response.getObjectJSON(i));
+        }
+        out.endArray();
+        out.name("synchronous").value(response.isSynchronous());
+        out.name("requestId").value(response.getRequestId());
+        out.name("part").value(response.getPart());
+        out.name("more").value(response.hasMore());
+        out.endObject();
+    }
+
+    public static JsonReader newReader(Reader in) {
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        return reader;
+    }
+
+    /**
+     * Creates a reader for the commands of a client that never reads past the end of the line holding the last
+     * command. Whatever the client sends after a command is left in <code>in</code>, which can then be handed over to
+     * another protocol.
+     *
+     * @param in client's input, one command per line.
+     * @return a lenient reader.
+     */
+    public static JsonReader newCommandReader(BufferedReader in) {
+        return newReader(new LineBoundedReader(in));
+    }
+
+    public static JsonWriter newWriter(Writer out) {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setLenient(true);
+        return writer;
+    }
+
+    /*
+     * Hands out at most one line per read, JsonReader then only buffers up to the end of the line it is parsing.
+     */
+    private static class LineBoundedReader extends Reader {
+        private final BufferedReader in;
+
+        LineBoundedReader(BufferedReader in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            int count = 0;
+            while (count < length) {
+                int c = in.read();
+                if (c == -1) {
+                    return count == 0 ? -1 : count;
+                }
+                buffer[offset + count++] = (char) c;
+                if (c == '\n') {
+                    break;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class CommandAdapter extends TypeAdapter<BTServerCommand> {
+
+        @Override
+        public void write(JsonWriter out, BTServerCommand command) throws IOException {
+            if (command == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("command").value(command.getCommand());
+            out.name("args").beginArray();
+            if (command.getArgs() != null) {
+                for (String arg : command.getArgs()) {
+                    out.value(arg);
+                }
+            }
+            out.endArray();
+            out.name("synchronous").value(command.isSynchronous());
+            if (command.getRequestId() != 0) {
+                out.name("requestId").value(command.getRequestId());
+            }
+            if (command.getCommands().length > 0) {
+                out.name("commands").beginArray();
+                for (BTServerCommand subCommand : command.getCommands()) {
+                    write(out, subCommand);
+                }
+                out.endArray();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public BTServerCommand read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String command = null;
+            String[] args = new String[0];
+            boolean synchronous = false;
+            int requestId = 0;
+            BTServerCommand[] commands = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if (name.equals("command")) {
+                    command = in.nextString();
+                } else if (name.equals("args")) {
+                    args = readStrings(in);
+                } else if (name.equals("synchronous")) {
+                    synchronous = in.nextBoolean();
+                } else if (name.equals("requestId")) {
+                    requestId = in.nextInt();
+                } else if (name.equals("commands")) {
+                    List<BTServerCommand> list = new ArrayList<BTServerCommand>();
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        list.add(read(in));
+                    }
+                    in.endArray();
+                    commands = list.toArray(new BTServerCommand[list.size()]);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+
+            BTServerCommand result = new BTServerCommand(command, args, synchronous);
+            result.setRequestId(requestId);
+            result.setCommands(commands);
+            return result;
+        }
+
+        private static String[] readStrings(JsonReader in) throws IOException {
+            List<String> strings = new ArrayList<String>();
+            in.beginArray();
+            while (in.hasNext()) {
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    strings.add(null);
+                } else {
+                    strings.add(in.nextString());
+                }
+            }
+            in.endArray();
+            return strings.toArray(new String[strings.size()]);
+        }
+    }
+}
@@ -1,35 +1,78 @@
 package com.facetoe.bluetoothserver;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
 import org.a0z.mpdlocal.*;
+import org.a0z.mpdlocal.event.BulkProgressListener;
+import org.a0z.mpdlocal.event.ResponseLineListener;
+import org.a0z.mpdlocal.event.TrackPositionListener;
+import org.a0z.mpdlocal.exception.MPDConnectionException;
 import org.a0z.mpdlocal.exception.MPDServerException;
 
+import javax.bluetooth.RemoteDevice;
 import javax.microedition.io.StreamConnection;
 import java.io.*;
+import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by facetoe on 31/12/13.
  */
 
-public class MPDManager implements MPDRawChangeMonitor.MPDRawChangeListener {
+public class MPDManager implements IncrementalSearch.SearchListener, BulkProgressListener, TrackPositionListener, EventJournal.JournalListener, OutboundQueue.FailureListener {
     private final boolean VERBOSE = true;
     private final MPD mpd;
-    private final Gson gson = new Gson();
+    // Lines per response part, a part takes well under a second over RFCOMM
+    private static final int LINES_PER_PART = 500;
+    // Streamed responses start with a small part so the first rows show up quickly
+    private static final int FIRST_PART_LINES = 25;
+    private static final int REQUEST_THREADS = 3;
+    // How long switching to passthrough waits for the JSON producers and the writer to stop
+    private static final long PASSTHROUGH_SWITCH_TIMEOUT = 5000;
 
     private StreamConnection connection;
+    private InputStream rawInputStream;
     private BufferedReader inputStream;
+    private JsonReader commandReader;
     private BufferedWriter outputStream;
+    private OutputStream rawOutputStream;
+    private OutboundQueue outboundQueue;
+    private final AtomicBoolean shutDown = new AtomicBoolean();
+    // Set when this session sent a command that may change the status, the cached status may predate it
+    private final AtomicBoolean statusDirty = new AtomicBoolean();
 
     private String host;
     private int port;
     private String password;
-    private MPDRawChangeMonitor changeMonitor;
+    private IncrementalSearch incrementalSearch;
+    private TrackPositionClock positionClock;
+    private final ExecutorService requestExecutor =
+            Executors.newFixedThreadPool(REQUEST_THREADS, new NamedThreadFactory("bluetooth-request"));
+    // Handles the journal's events in order, off the journal's thread which all sessions share
+    private final ExecutorService eventExecutor =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("bluetooth-events"));
+    // Hands the journal's changes to the passthrough session once eventExecutor is stopped
+    private final ExecutorService passthroughEvents =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("passthrough-events"));
     private boolean readingBulkCommandList = false;
+    // Last status this session was sent, deltas are computed against it
+    private MPDStatus lastSentStatus;
+    // Set once the client switched to the MPD protocol, no JSON is sent after that
+    private volatile PassthroughSession passthrough;
+    private final Object responseLock = new Object();
+    private final ResponseCache responseCache = new ResponseCache();
+    private EventJournal journal;
+    // Bluetooth address of the phone, null if unknown
+    private String deviceAddress;
 
     public MPDManager(StreamConnection connection, String password, int port, String host) throws IOException {
 
@@ -38,28 +81,44 @@ public class MPDManager implements MPDRawChangeMonitor.MPDRawChangeListener {
         this.port = port;
         this.host = host;
         this.mpd = new MPD();
+        try {
+            deviceAddress = RemoteDevice.getRemoteDevice(connection).getBluetoothAddress();
+        } catch (IOException e) {
+            System.err.println("Unknown remote device: " + e.getMessage());
+        }
         initConnection();
     }
 
     private void initConnection() throws IOException {
+        rawInputStream = connection.openInputStream();
         inputStream = new BufferedReader(
                 new InputStreamReader(
-                        connection.openInputStream(),
+                        rawInputStream,
                         Charset.forName("UTF-8")));
+        // Leaves what follows a passthrough command in inputStream for the PassthroughSession
+        commandReader = JsonProtocol.newCommandReader(inputStream);
 
+        rawOutputStream = connection.openOutputStream();
         outputStream = new BufferedWriter(
                 new OutputStreamWriter(
-                        connection.openOutputStream(),
+                        rawOutputStream,
                         Charset.forName("UTF-8")));
+        outboundQueue = new OutboundQueue(outputStream, this);
         connectToMPD();
     }
 
     private void connectToMPD()  {
         try {
-            mpd.connect(host, port, password);
-            changeMonitor = new MPDRawChangeMonitor(mpd, 1000);
-            changeMonitor.addMPDRawChangeListener(this);
-            changeMonitor.start();
+            // The journal watches the server for all sessions, no idle connection of our own
+            mpd.connect(host, port, password, false);
+            journal = EventJournal.forServer(host, port, password);
+            journal.addJournalListener(this);
+            incrementalSearch = new IncrementalSearch(mpd, this);
+            positionClock = new TrackPositionClock(mpd.getStatusCache());
+            positionClock.addTrackPositionListener(this);
+            positionClock.start();
+            // Initial status, later ones are read after each journal event
+            mpd.getStatus();
         } catch (MPDServerException e) {
             handleError(e);
         } catch (UnknownHostException e) {
@@ -71,35 +130,60 @@ public class MPDManager implements MPDRawChangeMonitor.MPDRawChangeListener {
     private void handleError(Exception e) {
         System.err.println("Sending error response: " + e.getMessage());
         MPDResponse errorResponse = new MPDResponse(MPDResponse.EVENT_ERROR, e.getMessage());
-        sendResponse(errorResponse);
+        sendResponse(errorResponse, OutboundQueue.PRIORITY_CONTROL);
         shutDown();
     }
 
     public void run() throws IOException {
-        String input;
-        while (true) {
-            if (VERBOSE) System.out.println("Waiting for input...");
-
-            input = inputStream.readLine();
-            if (VERBOSE) System.out.println("Received: " + input);
-
-            // If input is null the remote side closed the connection.
-            if (input == null) {
-                shutDown();
-                break;
-            } else {
-                processCommand(input);
+        // Also when the link drops and the read throws, the session would otherwise stay registered with the journal
+        try {
+            BTServerCommand btCommand;
+            while (true) {
+                if (VERBOSE) System.out.println("Waiting for input...");
+
+                btCommand = JsonProtocol.readCommand(commandReader);
+                if (VERBOSE) System.out.println("Received: " + btCommand);
+
+                // If the command is null the remote side closed the connection.
+                if (btCommand == null) {
+                    break;
+                } else {
+                    processCommand(btCommand);
+                }
+
+                if (passthrough != null) {
+                    passthrough.run();
+                    break;
+                }
             }
+        } finally {
+            shutDown();
         }
     }
 
     private void shutDown() {
+        if (!shutDown.compareAndSet(false, true)) {
+            return;
+        }
         try {
-            if (changeMonitor != null) {
-                changeMonitor.giveup();
+            if (incrementalSearch != null) {
+                incrementalSearch.shutdown();
+            }
+            if (positionClock != null) {
+                positionClock.stop();
             }
+            if (journal != null) {
+                journal.removeJournalListener(this);
+            }
+            mpd.getCommandCoalescer().shutdown();
+            requestExecutor.shutdownNow();
+            eventExecutor.shutdownNow();
+            passthroughEvents.shutdownNow();
             mpd.disconnect();
-            inputStream.close();
+            // Let pending responses, the error that caused the shutdown included, go out first
+            outboundQueue.close(2000);
+            // Not the reader, closing that waits for a read in progress
+            rawInputStream.close();
             outputStream.close();
             connection.close();
         } catch (MPDServerException e) {
@@ -110,20 +194,51 @@ public class MPDManager implements MPDRawChangeMonitor.MPDRawChangeListener {
         if (VERBOSE) System.out.println("Connection closed.");
     }
 
-    private void processCommand(String input) {
-        if (input.isEmpty()) return;
-        BTServerCommand btCommand = gson.fromJson(input, BTServerCommand.class);
+    private void processCommand(BTServerCommand btCommand) {
         String command = btCommand.getCommand();
+        if (command == null) return;
+        responseCache.commandSent(btCommand);
+        boolean coalescable = CommandCoalescer.isCoalescable(command, btCommand.getArgs());
+        if (!BTServerCommand.isReadOnlyCommand(command)) {
+            statusDirty.set(true);
+            if (!coalescable) {
+                // A seek still pending would otherwise reach MPD after this command, e.g. in the next track
+                mpd.getCommandCoalescer().flush();
+            }
+        }
 
         try {
             if (command.equals(BTServerCommand.SERVER_CAN_PROCEED)) {
                 handleConnectionCheck();
 
+            } else if (command.equals(BTServerCommand.SERVER_INCREMENTAL_SEARCH)) {
+                handleIncrementalSearch(btCommand);
+
+            } else if (command.equals(BTServerCommand.SERVER_REORDER_PLAYLIST)) {
+                handleReorderPlaylist(btCommand);
+
+            } else if (command.equals(BTServerCommand.SERVER_BATCH)) {
+                handleBatch(btCommand);
+
+            } else if (command.equals(BTServerCommand.SERVER_PASSTHROUGH)) {
+                handlePassthrough();
+
+            } else if (command.equals(BTServerCommand.SERVER_RESUME)) {
+                handleResume(btCommand);
+
+            } else if (btCommand.isSynchronous() && btCommand.getRequestId() != 0
+                    && BTServerCommand.isReadOnlyCommand(command)) {
+                handleConcurrent(btCommand);
+
             } else if (btCommand.isSynchronous()) {
                 handleSyncronous(btCommand);
 
             } else if (BTServerCommand.isBulkCommand(command) || readingBulkCommandList) {
-                processBulkCommand(command);
+                processBulkCommand(btCommand);
+
+            } else if (coalescable) {
+                // Slider drags, only the last value of a burst matters
+                mpd.getCommandCoalescer().submit(new MPDCommand(command, btCommand.getArgs()));
 
             } else {
                 sendMpdCommand(new MPDCommand(btCommand.getCommand(), btCommand.getArgs()));
@@ -141,19 +256,303 @@ public class MPDManager implements MPDRawChangeMonitor.MPDRawChangeListener {
             status.add("OK " + mpd.getMpdVersion());
             response = new MPDResponse(MPDResponse.SYNC_READ_WRITE, status);
             response.setSynchronous(true);
-            sendResponse(response);
+            sendResponse(response, OutboundQueue.PRIORITY_CONTROL);
         } catch (MPDServerException e) {
             handleError(e);
         }
     }
 
-    private void handleSyncronous(BTServerCommand btCommand) throws MPDServerException {
-        List<String> result = sendMpdCommand(btCommand.getCommand(), btCommand.getArgs());
-        if (VERBOSE) System.out.println("Got " + result.size() + " results for command: " + btCommand.getCommand());
-        MPDResponse response = new MPDResponse(MPDResponse.SYNC_READ_WRITE, result);
+    // Args are the search type, the text typed so far and optionally the maximum number of results.
+    private void handleIncrementalSearch(BTServerCommand btCommand) {
+        String[] args = btCommand.getArgs();
+        if (incrementalSearch == null || args == null || args.length < 2) {
+            return;
+        }
+        int limit = IncrementalSearch.DEFAULT_LIMIT;
+        if (args.length > 2) {
+            try {
+                limit = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid search limit: " + args[2]);
+            }
+        }
+        incrementalSearch.submit(args[0], args[1], limit);
+    }
+
+    // Args are the song ids of the whole queue in the wanted order.
+    private void handleReorderPlaylist(BTServerCommand btCommand) throws MPDServerException {
+        String[] args = btCommand.getArgs();
+        int[] ids = new int[args == null ? 0 : args.length];
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = Integer.parseInt(args[i]);
+            }
+            int moves = mpd.getPlaylist().reorder(ids);
+            if (VERBOSE) System.out.println("Reordered playlist with " + moves + " moves");
+        } catch (NumberFormatException e) {
+            sendCommandError(btCommand, "Invalid song id in reorder: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            sendCommandError(btCommand, "Invalid reorder: " + e.getMessage());
+        }
+    }
+
+    // Tells the client one of its commands was rejected, the session goes on
+    private void sendCommandError(BTServerCommand btCommand, String message) {
+        System.err.println(message);
+        MPDResponse response = new MPDResponse(MPDResponse.EVENT_ERROR, message);
+        response.setRequestId(btCommand.getRequestId());
+        sendResponse(response, OutboundQueue.PRIORITY_CONTROL);
+    }
+
+    /*
+     * Args are the journal epoch and the last sequence number the client received, without them the last one sent to
+     * this device is used. Answers with the epoch, the current sequence number, the distinct changes missed (null when
+     * everything must be reloaded), the playlist version at the client's last event and whether to reload everything.
+     */
+    private void handleResume(BTServerCommand btCommand) {
+        if (journal == null) {
+            return;
+        }
+        String[] args = btCommand.getArgs();
+        long epoch = journal.getEpoch();
+        long since = journal.lastSent(deviceAddress);
+        if (args != null && args.length >= 2) {
+            try {
+                epoch = Long.parseLong(args[0]);
+                since = Long.parseLong(args[1]);
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid resume position: " + e.getMessage());
+                since = 0;
+            }
+        }
+        EventJournal.Resume resume = journal.since(epoch, since);
+        MPDResponse response = new MPDResponse(MPDResponse.SYNC_RESUME, journal.getEpoch(), resume.getSequence(),
+                resume.getChanges(), resume.getPlaylistVersion(), resume.isFullResync());
         response.setSynchronous(true);
-        sendResponse(response);
+        response.setRequestId(btCommand.getRequestId());
+        sendResponse(response, OutboundQueue.PRIORITY_CONTROL);
+        if (VERBOSE) System.out.println("Resumed from " + since + " to " + resume.getSequence()
+                + (resume.isFullResync() ? ", full resync" : ""));
+    }
+
+    /*
+     * Switches the session to the MPD protocol over a pooled socket. Everything producing JSON is stopped first, the OK
+     * response is then written after all queued responses as the last JSON the client gets, and the tunnel only starts
+     * once the writer thread is gone, with the server greeting. The client may send MPD commands right after the switch
+     * command, the command reader leaves them in inputStream.
+     */
+    private void handlePassthrough() throws MPDServerException {
+        MPDSocketPool pool = MPDSocketPool.forServer(host, port, password);
+        Socket socket = pool.borrow();
+        PassthroughSession session = new PassthroughSession(pool, socket, inputStream, rawOutputStream);
+        synchronized (responseLock) {
+            // Responses still being produced are dropped from now on
+            passthrough = session;
+        }
+        if (positionClock != null) {
+            positionClock.stop();
+        }
+        if (incrementalSearch != null) {
+            incrementalSearch.shutdown();
+        }
+        requestExecutor.shutdownNow();
+        // Changes already queued only reach the session, they are answered once tunneling
+        eventExecutor.shutdown();
+        MPDResponse response = new MPDResponse(MPDResponse.SYNC_READ_WRITE, Collections.singletonList("OK passthrough"));
+        response.setSynchronous(true);
+        if (!awaitTermination(requestExecutor) || !awaitTermination(eventExecutor)
+                || !outboundQueue.close(response, PASSTHROUGH_SWITCH_TIMEOUT)) {
+            // The writer could still write JSON in the middle of the tunnel
+            passthrough = null;
+            pool.release(socket, false);
+            throw new MPDServerException("Could not switch to passthrough, responses are still being sent");
+        }
+        if (VERBOSE) System.out.println("Switched to passthrough");
+    }
+
+    private static boolean awaitTermination(ExecutorService executor) {
+        try {
+            return executor.awaitTermination(PASSTHROUGH_SWITCH_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // A batch runs as one command list and is answered with one response holding the lines of each command. Batches
+    // of read-only commands with a request id run concurrently like single ones.
+    private void handleBatch(final BTServerCommand btCommand) throws MPDServerException {
+        boolean readOnly = btCommand.getRequestId() != 0;
+        for (BTServerCommand subCommand : btCommand.getCommands()) {
+            readOnly &= BTServerCommand.isReadOnlyCommand(subCommand.getCommand());
+        }
+        if (!readOnly) {
+            sendBatch(btCommand);
+            return;
+        }
+        requestExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sendBatch(btCommand);
+                } catch (MPDServerException e) {
+                    concurrentRequestFailed(btCommand, e);
+                }
+            }
+        });
+    }
+
+    private void sendBatch(BTServerCommand btCommand) throws MPDServerException {
+        BTServerCommand[] subCommands = btCommand.getCommands();
+        List<String[]> results = Collections.emptyList();
+        if (subCommands.length > 0) {
+            MPDCommand[] commands = new MPDCommand[subCommands.length];
+            for (int i = 0; i < subCommands.length; i++) {
+                commands[i] = new MPDCommand(subCommands[i].getCommand(), subCommands[i].getArgs());
+            }
+            MPDConnection conn = mpd.getMpdConnection();
+            if (conn == null) {
+                handleError(new MPDServerException("No connection to MPD server."));
+                return;
+            }
+            results = conn.sendCommandsSeparated(commands);
+        }
+        if (VERBOSE) System.out.println("Got results for batch of " + subCommands.length + " commands");
+        MPDResponse response = new MPDResponse(MPDResponse.SYNC_BATCH, results);
+        response.setSynchronous(true);
+        response.setRequestId(btCommand.getRequestId());
+        sendResponse(response, OutboundQueue.PRIORITY_CONTROL);
+    }
+
+    // Read-only commands with a request id run on the request pool and may complete out of order, the client
+    // matches the responses by id.
+    private void handleConcurrent(final BTServerCommand btCommand) {
+        requestExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handleSyncronous(btCommand);
+                } catch (MPDServerException e) {
+                    concurrentRequestFailed(btCommand, e);
+                }
+            }
+        });
+    }
+
+    // An ACK only fails the request, e.g. a search with a bad argument. A lost connection still ends the session.
+    private void concurrentRequestFailed(BTServerCommand btCommand, MPDServerException e) {
+        if (e instanceof MPDConnectionException) {
+            handleError(e);
+        } else {
+            sendCommandError(btCommand, e.getMessage());
+        }
+    }
 
+    private void handleSyncronous(BTServerCommand btCommand) throws MPDServerException {
+        if (!btCommand.getCommand().equals(BTServerCommand.MPD_CMD_STATUS)) {
+            streamMpdCommand(btCommand);
+            return;
+        }
+        sendLines(statusLines(), btCommand.getRequestId());
+    }
+
+    private void sendLines(List<String> lines, int requestId) {
+        List<MPDResponse> parts = MPDResponse.split(MPDResponse.SYNC_READ_WRITE, lines, LINES_PER_PART, true);
+        int priority = parts.size() > 1 ? OutboundQueue.PRIORITY_BULK : OutboundQueue.PRIORITY_CONTROL;
+        for (MPDResponse part : parts) {
+            part.setRequestId(requestId);
+            sendResponse(part, priority);
+        }
+    }
+
+    // Status from the status cache, kept current by the change monitor, instead of a round trip on the busy connection.
+    // After a command of this session that may have changed it, the status is read again once the command went out.
+    private List<String> statusLines() throws MPDServerException {
+        boolean refresh = statusDirty.getAndSet(false);
+        if (refresh) {
+            mpd.getCommandCoalescer().flush();
+        }
+        Map<String, String> values = mpd.getStatus(refresh).getValues();
+        List<String> lines = new ArrayList<String>(values.size());
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return lines;
+    }
+
+    // Forwards the response in parts as the lines arrive from MPD, the whole response is only held in memory when it
+    // goes to the response cache. Cached responses are answered without contacting MPD.
+    private void streamMpdCommand(BTServerCommand btCommand) throws MPDServerException {
+        MPDCommand mpdCommand = new MPDCommand(btCommand.getCommand(), btCommand.getArgs());
+        boolean cacheable = ResponseCache.isCacheable(mpdCommand.getCommand());
+        if (cacheable) {
+            List<String> cached = responseCache.get(mpdCommand);
+            if (cached != null) {
+                if (VERBOSE) System.out.println("Cached " + cached.size() + " results for command: " + mpdCommand.getCommand());
+                sendLines(cached, btCommand.getRequestId());
+                return;
+            }
+        }
+
+        MPDConnection conn = mpd.getMpdConnection();
+        if (conn == null) {
+            handleError(new MPDServerException("No connection to MPD server."));
+            return;
+        }
+        long generation = responseCache.generation(mpdCommand.getCommand());
+        ResponseStream stream = new ResponseStream(btCommand.getRequestId(), cacheable);
+        int lines = conn.sendStreamed(mpdCommand, stream);
+        stream.finish();
+        if (stream.recorded != null) {
+            responseCache.put(mpdCommand, stream.recorded, generation);
+        }
+        if (VERBOSE) System.out.println("Streamed " + lines + " results for command: " + btCommand.getCommand());
+    }
+
+    /*
+     * Sends lines in parts of growing size, from FIRST_PART_LINES up to LINES_PER_PART. Every part but the last has
+     * more set; the last one may be empty when the lines end exactly on a part boundary.
+     */
+    private class ResponseStream implements ResponseLineListener {
+        private final int requestId;
+        private int partSize = FIRST_PART_LINES;
+        private int part = 0;
+        private List<String> lines = new ArrayList<String>(FIRST_PART_LINES);
+        // Whole response for the cache, null if not cached
+        List<String> recorded;
+
+        ResponseStream(int requestId, boolean record) {
+            this.requestId = requestId;
+            this.recorded = record ? new ArrayList<String>() : null;
+        }
+
+        @Override
+        public void lineReceived(String line) {
+            lines.add(line);
+            if (recorded != null) {
+                recorded = recorded.size() < ResponseCache.MAX_ENTRY_LINES ? recorded : null;
+                if (recorded != null) {
+                    recorded.add(line);
+                }
+            }
+            if (lines.size() >= partSize) {
+                send(true);
+                partSize = Math.min(LINES_PER_PART, partSize * 2);
+                lines = new ArrayList<String>(partSize);
+            }
+        }
+
+        void finish() {
+            send(false);
+        }
+
+        private void send(boolean more) {
+            MPDResponse response = MPDResponse.part(MPDResponse.SYNC_READ_WRITE, lines, part, more, true);
+            response.setRequestId(requestId);
+            // A single part answers like any control command, the following ones queue behind events
+            sendResponse(response, part == 0 && !more ? OutboundQueue.PRIORITY_CONTROL : OutboundQueue.PRIORITY_BULK);
+            part++;
+        }
     }
 
     private List<String> sendMpdCommand(String command, String[] args) throws MPDServerException {
@@ -170,41 +569,153 @@ public class MPDManager implements MPDRawChangeMonitor.MPDRawChangeListener {
         }
     }
 
-    private void processBulkCommand(String input) throws MPDServerException {
-        BTServerCommand btCommand = gson.fromJson(input, BTServerCommand.class);
+    private void processBulkCommand(BTServerCommand btCommand) throws MPDServerException {
+        String command = btCommand.getCommand();
 
-        if (btCommand.getCommand().equals(BTServerCommand.MPD_CMD_START_BULK)) {
+        if (command.equals(BTServerCommand.MPD_CMD_START_BULK) || command.equals(BTServerCommand.MPD_CMD_START_BULK_OK)) {
             readingBulkCommandList = true;
-        } else if (input.equals(BTServerCommand.MPD_CMD_END_BULK)) {
-            mpd.getMpdConnection().sendCommandQueue();
+        } else if (command.equals(BTServerCommand.MPD_CMD_END_BULK)) {
+            // Split into several lists so big lists don't hit max_command_list_size
             readingBulkCommandList = false;
+            mpd.getMpdConnection().sendCommandQueuePipelined(this);
         } else {
             mpd.getMpdConnection().queueCommand(btCommand.getCommand(), btCommand.getArgs());
         }
     }
 
-    private void sendResponse(Object obj) {
-        write(gson.toJson(obj));
-        System.out.println("Sent: " + obj.toString());
+    private void sendResponse(MPDResponse response) {
+        sendResponse(response, OutboundQueue.PRIORITY_EVENT);
+    }
+
+    private void sendResponse(MPDResponse response, int priority) {
+        sendResponse(response, priority, null);
+    }
+
+    /*
+     * written is run once the response went out, see OutboundQueue.offer().
+     */
+    private void sendResponse(MPDResponse response, int priority, Runnable written) {
+        // Backpressure for large responses, outside responseLock so events and control responses still get through
+        if (priority == OutboundQueue.PRIORITY_BULK && !outboundQueue.awaitBulkCapacity()) {
+            return;
+        }
+        synchronized (responseLock) {
+            if (passthrough != null || !outboundQueue.offer(response, priority, written)) {
+                return;
+            }
+        }
+        if (VERBOSE) System.out.println("Queued: " + response.toString());
+    }
+
+    // The client can't be reached anymore, closing the connection also ends the read loop
+    @Override
+    public void writeFailed(IOException e) {
+        shutDown();
     }
 
-    private void write(String message) {
+    @Override
+    public void eventJournaled(final long sequence, final List<String> changes) {
+        if (passthrough == null) {
+            try {
+                eventExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateChanges(sequence, changes);
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                // Switched to passthrough meanwhile, or shutting down
+            }
+        }
+        final PassthroughSession session = passthrough;
+        if (session == null) {
+            return;
+        }
         try {
-            outputStream.write(message + "\n");
-            outputStream.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+            passthroughEvents.execute(new Runnable() {
+                @Override
+                public void run() {
+                    session.changes(changes);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
         }
     }
 
+    /*
+     * Sends the raw changes existing clients listen for, the same changes with the journal epoch and sequence number of
+     * the event, then the status delta. The sequence number is only recorded as sent to the device once the client got
+     * it.
+     */
+    private void updateChanges(final long sequence, List<String> changes) {
+        mpd.changesObserved(changes);
+        responseCache.changed(changes);
+        PassthroughSession session = passthrough;
+        if (session != null) {
+            session.changes(changes);
+            return;
+        }
+        try {
+            mpd.getStatusCache().refreshIfStale();
+        } catch (MPDServerException e) {
+            System.err.println("Status refresh failed: " + e.getMessage());
+        }
+        sendResponse(new MPDResponse(MPDResponse.EVENT_UPDATE_RAW_CHANGES, changes));
+        MPDResponse response = new MPDResponse(MPDResponse.EVENT_JOURNAL, journal.getEpoch(), sequence, changes);
+        sendResponse(response, OutboundQueue.PRIORITY_EVENT, new Runnable() {
+            @Override
+            public void run() {
+                journal.sent(deviceAddress, sequence);
+            }
+        });
+        sendStatusDelta();
+    }
+
+    /*
+     * Sends the status fields that changed since the last status sent: the status version, the changed fields, the
+     * names of the fields that disappeared and whether this is the full status (first one of the session). Elapsed
+     * time and bitrate only come with the full status, track position events keep them up to date.
+     */
+    private synchronized void sendStatusDelta() {
+        MPDStatus status = mpd.getStatusCache().peek();
+        if (status.getVersion() == 0 || (lastSentStatus != null && status.getVersion() <= lastSentStatus.getVersion())) {
+            return;
+        }
+        List<String> removed = new ArrayList<String>();
+        Map<String, String> changed = MPDStatus.diff(lastSentStatus, status, removed);
+        boolean full = lastSentStatus == null;
+        lastSentStatus = status;
+        if (changed.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        sendResponse(new MPDResponse(MPDResponse.EVENT_STATUS_DELTA, status.getVersion(), changed, removed, full));
+    }
+
+    @Override
+    public void bulkProgress(int done, int total) {
+        sendResponse(new MPDResponse(MPDResponse.EVENT_BULK_PROGRESS, done, total));
+    }
+
+    // Sends the elapsed time in milliseconds, the track length in seconds and the player state.
     @Override
-    public void updateChanges(List<String> changes) {
-        MPDResponse changeResponse = new MPDResponse(MPDResponse.EVENT_UPDATE_RAW_CHANGES, changes);
-        sendResponse(changeResponse);
+    public void trackPositionChanged(MPDStatus status) {
+        sendResponse(new MPDResponse(MPDResponse.EVENT_TRACKPOSITION,
+                status.getElapsedMillis(), status.getTotalTime(), status.getState()));
+    }
+
+    @Override
+    public void searchResults(String query, int offset, List<Music> songs, boolean complete) {
+        MPDResponse response = new MPDResponse(MPDResponse.EVENT_SEARCH_RESULTS,
+                query, offset, IncrementalSearch.toResponseLines(songs), complete);
+        sendResponse(response);
     }
 
+    // Sends the error message and the query, the session goes on and the next keystroke searches again
     @Override
-    public void notifyError(Exception e) {
-        handleError(e);
+    public void searchFailed(String query, Exception e) {
+        System.err.println("Search for \"" + query + "\" failed: " + e.getMessage());
+        sendResponse(new MPDResponse(MPDResponse.EVENT_ERROR, e.getMessage(), query));
     }
 }
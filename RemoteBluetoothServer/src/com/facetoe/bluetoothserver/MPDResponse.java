@@ -1,8 +1,8 @@
 package com.facetoe.bluetoothserver;
 
-import com.google.gson.Gson;
-
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by facetoe on 26/12/13.
@@ -35,20 +35,32 @@ public class MPDResponse implements Serializable {
     public static final int SYNC_READ_WRITE = 21;
     public static final int EVENT_UPDATE_RAW_CHANGES = 22;
     public static final int EVENT_ERROR = 23;
+    public static final int EVENT_SEARCH_RESULTS = 24;
+    public static final int EVENT_BULK_PROGRESS = 25;
+    public static final int EVENT_STATUS_DELTA = 26;
+    public static final int SYNC_BATCH = 27;
+    // Idle changes with their journal epoch and sequence number, follows EVENT_UPDATE_RAW_CHANGES for the same changes
+    public static final int EVENT_JOURNAL = 28;
+    public static final int SYNC_RESUME = 29;
 
     private int responseType;
     private int numObjects;
     private String[] objectJSON;
 
     private boolean synchronous = false;
+    // Id of the command this responds to, 0 if the command had none
+    private int requestId = 0;
+
+    // Position of this response in a response split into several parts, more is set on all but the last part
+    private int part = 0;
+    private boolean more = false;
 
     public MPDResponse(int responseType, Object... obj) {
         this.responseType = responseType;
         numObjects = obj.length;
         objectJSON = new String[numObjects];
-        Gson gson = new Gson();
         for (int i = 0; i < numObjects; i++) {
-            objectJSON[i] = gson.toJson(obj[i]);
+            objectJSON[i] = JsonProtocol.GSON.toJson(obj[i]);
         }
     }
 
@@ -74,11 +86,68 @@ public class MPDResponse implements Serializable {
         this.synchronous = synchronous;
     }
 
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
+    public int getPart() {
+        return part;
+    }
+
+    public boolean hasMore() {
+        return more;
+    }
+
+    /**
+     * Splits a large line based response into parts of at most <code>linesPerPart</code> lines. Clients concatenate
+     * the lines of all parts, up to the one without <code>more</code>.
+     *
+     * @param responseType response type of every part.
+     * @param lines        lines to split.
+     * @param linesPerPart maximum number of lines per part.
+     * @param synchronous  whether the parts answer a synchronous command.
+     * @return the parts, a single response if the lines fit in one.
+     */
+    public static List<MPDResponse> split(int responseType, List<String> lines, int linesPerPart, boolean synchronous) {
+        List<MPDResponse> parts = new ArrayList<MPDResponse>();
+        int from = 0;
+        do {
+            int to = Math.min(lines.size(), from + linesPerPart);
+            parts.add(part(responseType, new ArrayList<String>(lines.subList(from, to)), parts.size(),
+                    to < lines.size(), synchronous));
+            from = to;
+        } while (from < lines.size());
+        return parts;
+    }
+
+    /**
+     * Builds one part of a response sent in several parts, see {@link #split(int, List, int, boolean)}.
+     *
+     * @param responseType response type of every part.
+     * @param lines        lines of this part.
+     * @param part         position of this part, from 0.
+     * @param more         whether more parts follow.
+     * @param synchronous  whether the part answers a synchronous command.
+     * @return the part.
+     */
+    public static MPDResponse part(int responseType, List<String> lines, int part, boolean more, boolean synchronous) {
+        MPDResponse response = new MPDResponse(responseType, lines);
+        response.setSynchronous(synchronous);
+        response.part = part;
+        response.more = more;
+        return response;
+    }
+
     @Override
     public String toString() {
         return "MPDResponse{" +
                 "responseType=" + responseType +
                 ", numObjects=" + numObjects +
+                ", part=" + part +
                 '}';
     }
 }
@@ -0,0 +1,164 @@
+package com.facetoe.bluetoothserver;
+
+import org.a0z.mpdlocal.MPDCommand;
+import org.a0z.mpdlocal.exception.MPDConnectionException;
+import org.a0z.mpdlocal.exception.MPDServerException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Raw, authenticated sockets to one MPD server, reused across passthrough sessions.
+ * <p>
+ * A socket is handed out right after its greeting was read, or after a <code>ping</code> proved an idle one still
+ * works, and is only taken back when no response is pending on it.
+ */
+public class MPDSocketPool {
+
+    private static final int CONNECTION_TIMEOUT = 10000;
+    private static final int MAX_IDLE_SOCKETS = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Map<String, MPDSocketPool> POOLS = new HashMap<String, MPDSocketPool>();
+
+    private final String host;
+    private final int port;
+    private final String password;
+    private final Deque<Socket> idle = new ArrayDeque<Socket>();
+    private volatile String greeting;
+
+    private MPDSocketPool(String host, int port, String password) {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+    }
+
+    /**
+     * Retrieves the pool of a server, shared by all sessions.
+     */
+    public static synchronized MPDSocketPool forServer(String host, int port, String password) {
+        String key = host + ":" + port + ":" + password;
+        MPDSocketPool pool = POOLS.get(key);
+        if (pool == null) {
+            pool = new MPDSocketPool(host, port, password);
+            POOLS.put(key, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Retrieves the greeting the server sent, e.g. "OK MPD 0.19.0".
+     *
+     * @return the greeting, null until a socket was opened.
+     */
+    public String getGreeting() {
+        return greeting;
+    }
+
+    /**
+     * Takes a working socket from the pool, or opens a new one.
+     *
+     * @return a socket ready for the next command.
+     * @throws MPDServerException if no connection can be made.
+     */
+    public Socket borrow() throws MPDServerException {
+        Socket socket;
+        while ((socket = pollIdle()) != null) {
+            try {
+                if (command(socket, new MPDCommand(MPDCommand.MPD_CMD_PING))) {
+                    return socket;
+                }
+            } catch (IOException e) {
+                // Timed out by the server while idle
+            }
+            closeQuietly(socket);
+        }
+        return open();
+    }
+
+    /**
+     * Gives a socket back.
+     *
+     * @param socket   socket from {@link #borrow()}.
+     * @param reusable false if a response may still be pending on it or its connection state was changed, it is then
+     *                 closed.
+     */
+    public void release(Socket socket, boolean reusable) {
+        if (reusable && !socket.isClosed()) {
+            synchronized (idle) {
+                if (idle.size() < MAX_IDLE_SOCKETS) {
+                    idle.push(socket);
+                    return;
+                }
+            }
+        }
+        closeQuietly(socket);
+    }
+
+    private Socket pollIdle() {
+        synchronized (idle) {
+            return idle.poll();
+        }
+    }
+
+    private Socket open() throws MPDServerException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECTION_TIMEOUT);
+            socket.setSoTimeout(CONNECTION_TIMEOUT);
+            String line = readLine(socket.getInputStream());
+            if (line == null || !line.startsWith("OK MPD")) {
+                throw new MPDConnectionException("Bogus server response: " + line);
+            }
+            greeting = line;
+            if (password != null && !command(socket, new MPDCommand(MPDCommand.MPD_CMD_PASSWORD, password))) {
+                throw new MPDConnectionException("MPD password rejected");
+            }
+            return socket;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw new MPDConnectionException(e);
+        } catch (MPDServerException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    // Sends a command without output and tells whether the server accepted it
+    private static boolean command(Socket socket, MPDCommand command) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(command.toString().getBytes(UTF8));
+        out.flush();
+        String line = readLine(socket.getInputStream());
+        return "OK".equals(line);
+    }
+
+    // Reads one line a byte at a time, so nothing after it is consumed from the socket
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return new String(line.toByteArray(), UTF8);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
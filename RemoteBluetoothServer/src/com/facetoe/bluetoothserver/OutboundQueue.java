@@ -0,0 +1,236 @@
+package com.facetoe.bluetoothserver;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outgoing messages of one Bluetooth session, written by a single thread.
+ *
+ * Any thread may offer responses, they are encoded straight into the stream by the writer thread. Lower priority
+ * values are written first and messages of the same priority keep their order, so control responses and events
+ * overtake queued chunks of a large response. The stream is flushed whenever the queue runs empty, so bursts of small
+ * messages share a flush.
+ *
+ * At most {@link #MAX_BULK_FRAMES} bulk frames are queued: {@link #awaitBulkCapacity()} blocks the producer of a large
+ * response until the link has caught up, so a response read from MPD faster than RFCOMM carries it doesn't pile up in
+ * memory.
+ *
+ * A response may come with a callback, run by the writer thread once the response was written and flushed, for callers
+ * that need to know what the client was actually sent.
+ *
+ * Once writing failed or the queue was closed, offered responses are dropped. A write failure is reported to the
+ * {@link FailureListener}, which is expected to end the session.
+ */
+public class OutboundQueue {
+
+    public interface FailureListener {
+        void writeFailed(IOException e);
+    }
+
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_EVENT = 1;
+    public static final int PRIORITY_BULK = 2;
+    // Written after everything else
+    private static final int PRIORITY_CLOSE = 3;
+    public static final int MAX_BULK_FRAMES = 8;
+
+    private final Writer out;
+    private final JsonWriter json;
+    private final PriorityBlockingQueue<Frame> frames = new PriorityBlockingQueue<Frame>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Thread writer;
+    private final FailureListener failureListener;
+    private volatile boolean closed = false;
+    private volatile boolean failed = false;
+    // Bulk frames queued, guarded by bulkLock
+    private final Object bulkLock = new Object();
+    private int bulkFrames = 0;
+    // Callbacks of the frames written since the last flush, only used by the writer thread
+    private final List<Runnable> unflushed = new ArrayList<Runnable>();
+
+    public OutboundQueue(Writer out, FailureListener failureListener) {
+        this.out = out;
+        this.failureListener = failureListener;
+        this.json = JsonProtocol.newWriter(out);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "bluetooth-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a response.
+     *
+     * @param response response to write as one line of JSON.
+     * @param priority one of the <code>PRIORITY_</code> constants.
+     * @return false if the response was dropped because the queue is closed or the connection failed.
+     */
+    public boolean offer(MPDResponse response, int priority) {
+        return offer(response, priority, null);
+    }
+
+    /**
+     * Queues a response and runs <code>written</code> once it reached the stream.
+     *
+     * @param response response to write as one line of JSON.
+     * @param priority one of the <code>PRIORITY_</code> constants.
+     * @param written  run on the writer thread after the response was written and flushed, never if it is dropped or
+     *                 writing fails. May be null.
+     * @return false if the response was dropped because the queue is closed or the connection failed.
+     */
+    public boolean offer(MPDResponse response, int priority, Runnable written) {
+        if (closed || failed) {
+            return false;
+        }
+        if (priority == PRIORITY_BULK) {
+            synchronized (bulkLock) {
+                bulkFrames++;
+            }
+        }
+        frames.add(new Frame(response, priority, sequence.getAndIncrement(), written));
+        if (failed) {
+            // Raced with a failure, nobody takes it anymore
+            frames.clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits until fewer than {@link #MAX_BULK_FRAMES} bulk frames are queued. Meant to be called before offering a
+     * bulk frame, without holding locks the other producers need. Producers calling it concurrently may together
+     * exceed the limit by one frame each.
+     *
+     * @return false if the queue was closed, the connection failed or the thread was interrupted while waiting.
+     */
+    public boolean awaitBulkCapacity() {
+        synchronized (bulkLock) {
+            while (bulkFrames >= MAX_BULK_FRAMES && !closed && !failed) {
+                try {
+                    bulkLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return !closed && !failed;
+    }
+
+    /**
+     * Writes out everything queued so far and stops the writer thread.
+     *
+     * @param timeoutMs maximum time to wait for the queue to drain.
+     */
+    public void close(long timeoutMs) {
+        close(null, timeoutMs);
+    }
+
+    /**
+     * Writes out everything queued so far followed by <code>last</code>, and stops the writer thread.
+     *
+     * @param last      response written after all others, may be null.
+     * @param timeoutMs maximum time to wait for the queue to drain.
+     * @return true once the writer thread stopped, nothing is written to the stream after that.
+     */
+    public boolean close(MPDResponse last, long timeoutMs) {
+        frames.add(new Frame(last, PRIORITY_CLOSE, sequence.getAndIncrement(), null));
+        closed = true;
+        wakeBulkProducers(0);
+        if (Thread.currentThread() == writer) {
+            return false;
+        }
+        try {
+            writer.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !writer.isAlive();
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Frame frame = frames.take();
+                if (frame.priority == PRIORITY_CLOSE) {
+                    if (frame.response != null) {
+                        JsonProtocol.writeResponse(json, frame.response);
+                        out.write('\n');
+                    }
+                    flush();
+                    return;
+                }
+                JsonProtocol.writeResponse(json, frame.response);
+                out.write('\n');
+                if (frame.written != null) {
+                    unflushed.add(frame.written);
+                }
+                if (frame.priority == PRIORITY_BULK) {
+                    wakeBulkProducers(-1);
+                }
+                if (frames.isEmpty()) {
+                    flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Session is going away
+        } catch (IOException e) {
+            System.err.println("Error writing to client: " + e.getMessage());
+            failed = true;
+            frames.clear();
+            wakeBulkProducers(0);
+            failureListener.writeFailed(e);
+        }
+    }
+
+    private void flush() throws IOException {
+        out.flush();
+        for (Runnable written : unflushed) {
+            try {
+                written.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        unflushed.clear();
+    }
+
+    private void wakeBulkProducers(int delta) {
+        synchronized (bulkLock) {
+            bulkFrames += delta;
+            bulkLock.notifyAll();
+        }
+    }
+
+    private static class Frame implements Comparable<Frame> {
+        final MPDResponse response;
+        final int priority;
+        final long sequence;
+        final Runnable written;
+
+        Frame(MPDResponse response, int priority, long sequence, Runnable written) {
+            this.response = response;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.written = written;
+        }
+
+        @Override
+        public int compareTo(Frame o) {
+            if (priority != o.priority) {
+                return priority < o.priority ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+}
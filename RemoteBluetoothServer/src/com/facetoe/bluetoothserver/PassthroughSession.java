@@ -0,0 +1,306 @@
+package com.facetoe.bluetoothserver;
+
+import org.a0z.mpdlocal.MPDCommand;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tunnels the MPD text protocol between a Bluetooth client and a pooled MPD socket.
+ * <p>
+ * Responses are copied to the client as raw bytes, only scanned for the lines ending a response. Commands are forwarded
+ * line by line, except <code>idle</code> and <code>noidle</code>: those are answered from the changes reported by the
+ * server's event journal, so the pooled socket is never parked in idle and the server sees a single idle client
+ * per session.
+ * <p>
+ * A socket on which the client changed per-connection state, e.g. authenticated with another password or restricted
+ * the tag types, is closed afterwards instead of going back to the pool.
+ */
+public class PassthroughSession {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String CMD_NOIDLE = "noidle";
+    private static final String CHANGED = "changed: ";
+    // Commands changing state of the connection that the next session would inherit
+    private static final List<String> CONNECTION_STATE_COMMANDS = Arrays.asList(MPDCommand.MPD_CMD_PASSWORD,
+            "tagtypes", "binarylimit", "partition", "protocol", "subscribe");
+    // Read timeout on the MPD socket, bounds how long stopping the copy thread takes
+    private static final int POLL_INTERVAL = 500;
+
+    private final MPDSocketPool pool;
+    private final Socket socket;
+    private final BufferedReader clientIn;
+    private final OutputStream clientOut;
+    private final ResponseScanner scanner = new ResponseScanner();
+
+    // Guarded by this
+    private int inFlight = 0;
+    private boolean idling = false;
+    private boolean noidleRequested = false;
+    private final Set<String> idleFilter = new LinkedHashSet<String>();
+    private final Set<String> pendingChanges = new LinkedHashSet<String>();
+
+    private volatile boolean running = true;
+    private volatile boolean serverClosed = false;
+    private volatile boolean connectionStateChanged = false;
+
+    public PassthroughSession(MPDSocketPool pool, Socket socket, BufferedReader clientIn, OutputStream clientOut) {
+        this.pool = pool;
+        this.socket = socket;
+        this.clientIn = clientIn;
+        this.clientOut = clientOut;
+    }
+
+    /**
+     * Tunnels until either side closes the connection, then gives the socket back to the pool.
+     *
+     * @throws IOException if the client connection fails.
+     */
+    public void run() throws IOException {
+        Thread copier = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                copyResponses();
+            }
+        }, "passthrough-responses");
+        copier.setDaemon(true);
+        try {
+            socket.setSoTimeout(POLL_INTERVAL);
+            synchronized (this) {
+                write(pool.getGreeting() + "\n");
+            }
+            copier.start();
+            forwardCommands();
+        } finally {
+            running = false;
+            try {
+                copier.join(POLL_INTERVAL * 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            boolean reusable;
+            synchronized (this) {
+                reusable = !serverClosed && !connectionStateChanged && inFlight == 0 && !copier.isAlive();
+            }
+            pool.release(socket, reusable);
+        }
+    }
+
+    /**
+     * Called with the changes reported by the server's event journal.
+     *
+     * @param changes lines such as "changed: player".
+     */
+    public synchronized void changes(List<String> changes) {
+        for (String change : changes) {
+            if (change.startsWith(CHANGED)) {
+                pendingChanges.add(change.substring(CHANGED.length()));
+            }
+        }
+        answerIdle();
+    }
+
+    private void forwardCommands() throws IOException {
+        OutputStream serverOut = socket.getOutputStream();
+        boolean inList = false;
+        String line;
+        while (!serverClosed && (line = clientIn.readLine()) != null) {
+            String command = line.trim();
+            String name = command.split(" ", 2)[0];
+            if (CONNECTION_STATE_COMMANDS.contains(name)) {
+                connectionStateChanged = true;
+            }
+            if (!inList && name.equals(MPDCommand.MPD_CMD_IDLE)) {
+                startIdle(command);
+                continue;
+            }
+            if (!inList && name.equals(CMD_NOIDLE)) {
+                stopIdle();
+                continue;
+            }
+            if (name.equals(BTServerCommand.MPD_CMD_START_BULK) || name.equals(BTServerCommand.MPD_CMD_START_BULK_OK)) {
+                inList = true;
+            } else if (name.equals(BTServerCommand.MPD_CMD_END_BULK)) {
+                inList = false;
+            }
+            if (!inList) {
+                synchronized (this) {
+                    // A command sent while idle ends the idle, like it would on the server
+                    if (idling) {
+                        noidleRequested = true;
+                        answerIdle();
+                    }
+                    inFlight++;
+                }
+            }
+            serverOut.write((line + "\n").getBytes(UTF8));
+            serverOut.flush();
+        }
+    }
+
+    private synchronized void startIdle(String command) {
+        idleFilter.clear();
+        String[] words = command.split("\\s+");
+        idleFilter.addAll(Arrays.asList(words).subList(1, words.length));
+        idling = true;
+        noidleRequested = false;
+        answerIdle();
+    }
+
+    private synchronized void stopIdle() {
+        if (idling) {
+            noidleRequested = true;
+            answerIdle();
+        }
+    }
+
+    /*
+     * Answers a pending idle once the responses in flight were copied out, with the changes it asked for or, after
+     * noidle, with what there is.
+     */
+    private void answerIdle() {
+        if (!idling || inFlight > 0) {
+            return;
+        }
+        List<String> matched = new ArrayList<String>();
+        for (Iterator<String> it = pendingChanges.iterator(); it.hasNext(); ) {
+            String subsystem = it.next();
+            if (idleFilter.isEmpty() || idleFilter.contains(subsystem)) {
+                matched.add(subsystem);
+                it.remove();
+            }
+        }
+        if (matched.isEmpty() && !noidleRequested) {
+            return;
+        }
+        StringBuilder response = new StringBuilder();
+        for (String subsystem : matched) {
+            response.append(CHANGED).append(subsystem).append('\n');
+        }
+        response.append("OK\n");
+        idling = false;
+        noidleRequested = false;
+        try {
+            write(response.toString());
+        } catch (IOException e) {
+            System.err.println("Error writing to client: " + e.getMessage());
+        }
+    }
+
+    private void copyResponses() {
+        byte[] buffer = new byte[8192];
+        try {
+            InputStream serverIn = socket.getInputStream();
+            while (running) {
+                int read;
+                try {
+                    read = serverIn.read(buffer);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (read == -1) {
+                    serverClosed = true;
+                    break;
+                }
+                int completed = scanner.scan(buffer, read);
+                synchronized (this) {
+                    clientOut.write(buffer, 0, read);
+                    clientOut.flush();
+                    inFlight -= completed;
+                    answerIdle();
+                }
+            }
+        } catch (IOException e) {
+            serverClosed = true;
+            System.err.println("Passthrough copy failed: " + e.getMessage());
+        }
+        if (serverClosed) {
+            // Makes the client reconnect, which ends forwardCommands
+            try {
+                clientOut.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    private void write(String text) throws IOException {
+        clientOut.write(text.getBytes(UTF8));
+        clientOut.flush();
+    }
+
+    /*
+     * Counts the responses ending in a byte stream: lines that are exactly "OK" or start with "ACK ". Binary chunks,
+     * announced by a "binary: <length>" line, are skipped.
+     */
+    static class ResponseScanner {
+        private static final byte[] OK = "OK".getBytes(UTF8);
+        private static final byte[] ACK = "ACK ".getBytes(UTF8);
+        private static final byte[] BINARY = "binary: ".getBytes(UTF8);
+
+        // Start of the current line, enough to recognize the lines above
+        private final byte[] line = new byte[32];
+        private int lineLength = 0;
+        private boolean lineTooLong = false;
+        private long binaryRemaining = 0;
+
+        int scan(byte[] buffer, int length) {
+            int completed = 0;
+            for (int i = 0; i < length; i++) {
+                if (binaryRemaining > 0) {
+                    int skip = (int) Math.min(binaryRemaining, length - i);
+                    binaryRemaining -= skip;
+                    i += skip - 1;
+                    continue;
+                }
+                byte b = buffer[i];
+                if (b == '\n') {
+                    completed += endLine();
+                } else if (lineLength < line.length) {
+                    line[lineLength++] = b;
+                } else {
+                    lineTooLong = true;
+                }
+            }
+            return completed;
+        }
+
+        private int endLine() {
+            int completed = 0;
+            if (startsWith(ACK) || (!lineTooLong && lineLength == OK.length && startsWith(OK))) {
+                completed = 1;
+            } else if (!lineTooLong && startsWith(BINARY)) {
+                binaryRemaining = 0;
+                for (int i = BINARY.length; i < lineLength && line[i] >= '0' && line[i] <= '9'; i++) {
+                    binaryRemaining = binaryRemaining * 10 + (line[i] - '0');
+                }
+            }
+            lineLength = 0;
+            lineTooLong = false;
+            return completed;
+        }
+
+        private boolean startsWith(byte[] prefix) {
+            if (lineLength < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (line[i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
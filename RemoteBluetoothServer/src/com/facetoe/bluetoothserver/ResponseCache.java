@@ -0,0 +1,156 @@
+package com.facetoe.bluetoothserver;
+
+import org.a0z.mpdlocal.MPDCommand;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Responses to read-only commands of one session, kept until the data they come from changes.
+ * <p>
+ * Each command is tagged with the idle subsystem its answer depends on. An entry is dropped when the change monitor
+ * reports that subsystem changed, or when the session itself sends a command that may modify something. A response
+ * read while a change was reported is not stored, since it may predate the change. The cache holds at most
+ * {@link #MAX_LINES} lines, least recently used entries go first.
+ */
+public class ResponseCache {
+
+    public static final int MAX_LINES = 100000;
+    public static final int MAX_ENTRY_LINES = MAX_LINES / 4;
+
+    private static final String DATABASE = "database";
+    private static final String STORED_PLAYLIST = "stored_playlist";
+    private static final String OUTPUT = "output";
+    private static final String PLAYLIST = "playlist";
+    private static final String CHANGED = "changed: ";
+
+    private static final Map<String, String> SUBSYSTEMS = new HashMap<String, String>();
+
+    static {
+        for (String command : Arrays.asList(MPDCommand.MPD_CMD_LSDIR, MPDCommand.MPD_CMD_LIST_TAG,
+                MPDCommand.MPD_CMD_LISTALL, MPDCommand.MPD_CMD_LISTALLINFO, MPDCommand.MPD_CMD_FIND,
+                MPDCommand.MPD_CMD_SEARCH, MPDCommand.MPD_CMD_COUNT)) {
+            SUBSYSTEMS.put(command, DATABASE);
+        }
+        SUBSYSTEMS.put(MPDCommand.MPD_CMD_LISTPLAYLISTS, STORED_PLAYLIST);
+        SUBSYSTEMS.put(MPDCommand.MPD_CMD_PLAYLIST_INFO, STORED_PLAYLIST);
+        SUBSYSTEMS.put(MPDCommand.MPD_CMD_OUTPUTS, OUTPUT);
+        SUBSYSTEMS.put(BTServerCommand.MPD_CMD_PLAYLIST_LIST, PLAYLIST);
+        SUBSYSTEMS.put(BTServerCommand.MPD_CMD_PLAYLIST_CHANGES, PLAYLIST);
+        SUBSYSTEMS.put(MPDCommand.MPD_CMD_QUEUE_INFO, PLAYLIST);
+    }
+
+    // Commands that change none of the subsystems above
+    private static final List<String> KEEPING_COMMANDS = Arrays.asList(MPDCommand.MPD_CMD_PLAY,
+            MPDCommand.MPD_CMD_PLAY_ID, MPDCommand.MPD_CMD_PAUSE, MPDCommand.MPD_CMD_STOP, MPDCommand.MPD_CMD_NEXT,
+            MPDCommand.MPD_CMD_PREV, MPDCommand.MPD_CMD_SEEK, MPDCommand.MPD_CMD_SEEK_ID,
+            MPDCommand.MPD_CMD_SEEK_CURRENT, MPDCommand.MPD_CMD_SET_VOLUME, MPDCommand.MPD_CMD_REPEAT,
+            MPDCommand.MPD_CMD_RANDOM, MPDCommand.MPD_CMD_SINGLE, MPDCommand.MPD_CMD_CONSUME,
+            MPDCommand.MPD_CMD_CROSSFADE, MPDCommand.MPD_CMD_CLEARERROR, MPDCommand.MPD_CMD_PING,
+            BTServerCommand.MPD_CMD_START_BULK, BTServerCommand.MPD_CMD_START_BULK_OK,
+            BTServerCommand.MPD_CMD_END_BULK, BTServerCommand.SERVER_CAN_PROCEED,
+            BTServerCommand.SERVER_INCREMENTAL_SEARCH, BTServerCommand.SERVER_BATCH, BTServerCommand.SERVER_RESUME);
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Map<String, Long> generations = new HashMap<String, Long>();
+    private int lines = 0;
+
+    public static boolean isCacheable(String command) {
+        return SUBSYSTEMS.containsKey(command);
+    }
+
+    /**
+     * Retrieves the generation of the subsystem a command depends on.
+     *
+     * @param command cacheable command name.
+     * @return value to pass to {@link #put(MPDCommand, List, long)} once the response was read.
+     */
+    public synchronized long generation(String command) {
+        Long generation = generations.get(SUBSYSTEMS.get(command));
+        return generation == null ? 0 : generation;
+    }
+
+    public synchronized List<String> get(MPDCommand command) {
+        Entry entry = entries.get(command.toString());
+        return entry == null ? null : entry.lines;
+    }
+
+    /**
+     * Stores a response, unless its subsystem changed since <code>generation</code> was read or it is too large.
+     *
+     * @param command    command answered.
+     * @param response   response lines, not modified afterwards.
+     * @param generation result of {@link #generation(String)} before the command was sent.
+     */
+    public synchronized void put(MPDCommand command, List<String> response, long generation) {
+        if (generation != generation(command.getCommand()) || response.size() > MAX_ENTRY_LINES) {
+            return;
+        }
+        Entry previous = entries.put(command.toString(), new Entry(SUBSYSTEMS.get(command.getCommand()), response));
+        if (previous != null) {
+            lines -= previous.lines.size();
+        }
+        lines += response.size();
+        for (Iterator<Entry> it = entries.values().iterator(); lines > MAX_LINES && it.hasNext(); ) {
+            lines -= it.next().lines.size();
+            it.remove();
+        }
+    }
+
+    /**
+     * Called with the changes reported by the change monitor.
+     *
+     * @param changes lines such as "changed: database".
+     */
+    public synchronized void changed(List<String> changes) {
+        for (String change : changes) {
+            if (change.startsWith(CHANGED)) {
+                evict(change.substring(CHANGED.length()));
+            }
+        }
+    }
+
+    /**
+     * Called before the session sends a command, drops everything if the command may modify cached data.
+     *
+     * @param command command about to be sent, batches included.
+     */
+    public synchronized void commandSent(BTServerCommand command) {
+        String name = command.getCommand();
+        if (!KEEPING_COMMANDS.contains(name) && !MPDCommand.isReadOnly(name)) {
+            for (String subsystem : Arrays.asList(DATABASE, STORED_PLAYLIST, OUTPUT, PLAYLIST)) {
+                evict(subsystem);
+            }
+            return;
+        }
+        for (BTServerCommand subCommand : command.getCommands()) {
+            commandSent(subCommand);
+        }
+    }
+
+    private void evict(String subsystem) {
+        Long generation = generations.get(subsystem);
+        generations.put(subsystem, generation == null ? 1 : generation + 1);
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.subsystem.equals(subsystem)) {
+                lines -= entry.lines.size();
+                it.remove();
+            }
+        }
+    }
+
+    private static class Entry {
+        final String subsystem;
+        final List<String> lines;
+
+        Entry(String subsystem, List<String> lines) {
+            this.subsystem = subsystem;
+            this.lines = lines;
+        }
+    }
+}